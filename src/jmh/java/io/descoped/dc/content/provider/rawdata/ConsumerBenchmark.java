@@ -0,0 +1,86 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import io.descoped.dc.api.content.ContentStreamBuffer;
+import io.descoped.dc.api.content.ContentStreamProducer;
+import io.descoped.rawdata.api.RawdataClient;
+import io.descoped.rawdata.api.RawdataClientInitializer;
+import io.descoped.service.provider.api.ProviderConfigurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives messages from a pre-populated topic, and rewinds the consumer when the topic is exhausted.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ConsumerBenchmark {
+
+    static final int MESSAGE_COUNT = 10_000;
+
+    @Param({"1024", "65536"})
+    int payloadSize;
+
+    @Param({"0", "256"})
+    int prefetch;
+
+    RawdataClientContentStream contentStream;
+    RawdataClientContentStreamConsumer consumer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        RawdataClient client = ProviderConfigurator.configure(Map.of(), "memory", RawdataClientInitializer.class);
+        contentStream = new RawdataClientContentStream(client, null, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.consumer.prefetch", String.valueOf(prefetch))));
+        byte[] payload = new byte[payloadSize];
+        try (ContentStreamProducer producer = contentStream.producer("consumer-benchmark")) {
+            for (int i = 1; i <= MESSAGE_COUNT; i++) {
+                producer.publishBuilders(producer.builder().position(String.valueOf(i)).put("entry", payload));
+            }
+        }
+        consumer = contentStream.consumer("consumer-benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        contentStream.close();
+    }
+
+    @Benchmark
+    public ContentStreamBuffer receive() throws InterruptedException {
+        ContentStreamBuffer buffer = consumer.receive(1, TimeUnit.SECONDS);
+        if (buffer == null) {
+            consumer.seek(0);
+            buffer = consumer.receive(1, TimeUnit.SECONDS);
+        }
+        return buffer;
+    }
+
+    @Benchmark
+    public List<ContentStreamBuffer> receiveBatch() throws InterruptedException {
+        List<ContentStreamBuffer> batch = consumer.receiveBatch(100, Long.MAX_VALUE, 1, TimeUnit.SECONDS);
+        if (batch.isEmpty()) {
+            consumer.seek(0);
+            batch = consumer.receiveBatch(100, Long.MAX_VALUE, 1, TimeUnit.SECONDS);
+        }
+        return batch;
+    }
+}
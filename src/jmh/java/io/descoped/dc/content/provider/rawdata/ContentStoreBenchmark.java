@@ -0,0 +1,113 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import io.descoped.dc.api.CorrelationIds;
+import io.descoped.dc.api.content.HttpRequestInfo;
+import io.descoped.dc.api.context.ExecutionContext;
+import io.descoped.dc.api.http.Headers;
+import io.descoped.rawdata.api.RawdataClient;
+import io.descoped.rawdata.api.RawdataClientInitializer;
+import io.descoped.service.provider.api.ProviderConfigurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers and publishes one position per operation through {@link RawdataClientContentStore}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentStoreBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class StoreState {
+
+        @Param({"1024", "65536"})
+        int payloadSize;
+
+        @Param({"1", "16"})
+        int keyCount;
+
+        @Param({"false", "true"})
+        boolean encryption;
+
+        @Param({"false", "true"})
+        boolean recycle;
+
+        RawdataClientContentStore contentStore;
+        HttpRequestInfo httpRequestInfo;
+        byte[] payload;
+        String[] contentKeys;
+        final AtomicInteger topicSequence = new AtomicInteger();
+
+        // the memory provider keeps all published messages, so the store is recreated for every iteration
+        @Setup(Level.Iteration)
+        public void setUp() {
+            RawdataClient client = ProviderConfigurator.configure(Map.of(), "memory", RawdataClientInitializer.class);
+            RawdataClientContentStreamConfiguration configuration = RawdataClientContentStreamConfiguration.of(Map.of("rawdata.buffer.recycle", String.valueOf(recycle)));
+            contentStore = encryption ?
+                    new RawdataClientContentStore(client, "password".toCharArray(), "salt".getBytes(), configuration) :
+                    new RawdataClientContentStore(client, null, null, configuration);
+            httpRequestInfo = new HttpRequestInfo(CorrelationIds.create(ExecutionContext.empty()), "http://localhost/entries", 200, new Headers(), new Headers(), 1000);
+            payload = new byte[payloadSize];
+            Arrays.fill(payload, (byte) 'x');
+            contentKeys = new String[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                contentKeys[i] = "entry-" + i;
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws Exception {
+            contentStore.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TopicState {
+        String topic;
+        long position;
+
+        @Setup(Level.Iteration)
+        public void setUp(StoreState storeState) {
+            topic = "benchmark-" + storeState.topicSequence.incrementAndGet();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void bufferAndPublish(StoreState storeState, TopicState topicState) {
+        bufferAndPublish(storeState, topicState.topic, String.valueOf(++topicState.position));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void bufferAndPublishOnTopicPerThread(StoreState storeState, TopicState topicState) {
+        bufferAndPublish(storeState, topicState.topic, String.valueOf(++topicState.position));
+    }
+
+    private static void bufferAndPublish(StoreState storeState, String topic, String position) {
+        for (String contentKey : storeState.contentKeys) {
+            storeState.contentStore.bufferDocument(topic, position, contentKey, storeState.payload, storeState.httpRequestInfo);
+        }
+        storeState.contentStore.publish(topic, position);
+    }
+}
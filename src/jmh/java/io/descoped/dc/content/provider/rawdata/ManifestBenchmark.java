@@ -0,0 +1,87 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import io.descoped.dc.api.CorrelationIds;
+import io.descoped.dc.api.content.ContentStreamBuffer;
+import io.descoped.dc.api.content.HttpRequestInfo;
+import io.descoped.dc.api.content.MetadataContent;
+import io.descoped.dc.api.context.ExecutionContext;
+import io.descoped.dc.api.http.Headers;
+import io.descoped.rawdata.api.RawdataClient;
+import io.descoped.rawdata.api.RawdataClientInitializer;
+import io.descoped.service.provider.api.ProviderConfigurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures manifest.json serialization, alone and as part of producing a position.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ManifestBenchmark {
+
+    @Param({"1", "16", "128"})
+    int keyCount;
+
+    RawdataClientContentStream contentStream;
+    RawdataClientContentStreamProducer producer;
+    List<MetadataContent> manifest;
+    byte[] payload = new byte[64];
+    long position;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        RawdataClient client = ProviderConfigurator.configure(Map.of(), "memory", RawdataClientInitializer.class);
+        RawdataClientContentStore contentStore = new RawdataClientContentStore(client, null, null);
+        contentStream = (RawdataClientContentStream) contentStore.contentStream();
+        producer = contentStream.producer("manifest-benchmark");
+
+        HttpRequestInfo httpRequestInfo = new HttpRequestInfo(CorrelationIds.create(ExecutionContext.empty()), "http://localhost/entries", 200, new Headers(), new Headers(), 1000);
+        manifest = new ArrayList<>();
+        for (int i = 0; i < keyCount; i++) {
+            manifest.add(contentStore.getMetadataContent("manifest-benchmark", "1", "entry-" + i, payload,
+                    MetadataContent.ResourceType.ENTRY, httpRequestInfo, new LinkedHashMap<>()));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        contentStream.close();
+    }
+
+    @Benchmark
+    public byte[] writeManifest() {
+        return RawdataClientManifestWriter.write(manifest);
+    }
+
+    @Benchmark
+    public void produceAndPublish() {
+        String nextPosition = String.valueOf(++position);
+        ContentStreamBuffer.Builder builder = producer.builder().position(nextPosition);
+        for (int i = 0; i < keyCount; i++) {
+            builder.buffer("entry-" + i, payload, manifest.get(i));
+        }
+        producer.produce(builder);
+        producer.publish(nextPosition);
+    }
+}
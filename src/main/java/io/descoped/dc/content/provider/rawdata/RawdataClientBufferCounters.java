@@ -0,0 +1,124 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import io.descoped.dc.api.content.ContentStateKey;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffered entries, bytes and positions, in total and per topic. The counters are maintained as content is buffered
+ * and published, so reading them does not scan the buffered positions. The counters of a topic are removed when the
+ * topic is closed and has no buffered positions.
+ */
+public class RawdataClientBufferCounters {
+
+    private final Map<ContentStateKey, PositionTally> positions = new ConcurrentHashMap<>();
+    private final Map<String, Counters> countersByTopic = new ConcurrentHashMap<>();
+    private final Counters total = new Counters();
+
+    /**
+     * Records content buffered to a position.
+     *
+     * @param entries number of entries added to the position, 0 if an entry was replaced
+     * @param bytes   number of bytes added to the position, negative if an entry was replaced by a smaller one
+     */
+    void add(String topic, ContentStateKey contentStateKey, int entries, long bytes) {
+        positions.compute(contentStateKey, (key, tally) -> {
+            PositionTally updated = tally;
+            if (updated == null) {
+                // the position is counted under the topic entry, so that removeTopic does not drop counters in use
+                Counters topicCounters = countersByTopic.compute(topic, (t, counters) -> {
+                    Counters current = counters != null ? counters : new Counters();
+                    current.positions.increment();
+                    return current;
+                });
+                updated = new PositionTally(topicCounters);
+                total.positions.increment();
+            }
+            updated.entries += entries;
+            updated.bytes += bytes;
+            total.add(entries, bytes);
+            updated.topicCounters.add(entries, bytes);
+            return updated;
+        });
+    }
+
+    /**
+     * Removes the content of a published position from the counters.
+     */
+    void remove(ContentStateKey contentStateKey) {
+        PositionTally tally = positions.remove(contentStateKey);
+        if (tally == null) {
+            return;
+        }
+        total.add(-tally.entries, -tally.bytes);
+        total.positions.decrement();
+        tally.topicCounters.add(-tally.entries, -tally.bytes);
+        tally.topicCounters.positions.decrement();
+    }
+
+    /**
+     * Removes the counters of a closed topic, unless positions of the topic are still buffered.
+     */
+    void removeTopic(String topic) {
+        countersByTopic.computeIfPresent(topic, (t, counters) -> counters.positions.sum() == 0 ? null : counters);
+    }
+
+    public long entryCount() {
+        return total.entries.sum();
+    }
+
+    public long byteCount() {
+        return total.bytes.sum();
+    }
+
+    public long positionCount() {
+        return total.positions.sum();
+    }
+
+    public long entryCount(String topic) {
+        Counters counters = countersByTopic.get(topic);
+        return counters == null ? 0 : counters.entries.sum();
+    }
+
+    public long byteCount(String topic) {
+        Counters counters = countersByTopic.get(topic);
+        return counters == null ? 0 : counters.bytes.sum();
+    }
+
+    public long positionCount(String topic) {
+        Counters counters = countersByTopic.get(topic);
+        return counters == null ? 0 : counters.positions.sum();
+    }
+
+    /**
+     * @return the topics that have counters
+     */
+    public Set<String> topics() {
+        return countersByTopic.keySet();
+    }
+
+    static class Counters {
+        final LongAdder entries = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder positions = new LongAdder();
+
+        void add(int entryCount, long byteCount) {
+            entries.add(entryCount);
+            bytes.add(byteCount);
+        }
+    }
+
+    static class PositionTally {
+        final Counters topicCounters;
+        // guarded by the map entry
+        int entries;
+        long bytes;
+
+        PositionTally(Counters topicCounters) {
+            this.topicCounters = topicCounters;
+        }
+    }
+}
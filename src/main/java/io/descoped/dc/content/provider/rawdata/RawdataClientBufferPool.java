@@ -0,0 +1,155 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size direct byte buffer chunks that holds buffered content off-heap until it is produced.
+ * <p>
+ * The pool never reserves more than its memory budget. When the budget is exhausted, {@link #allocate(byte[])}
+ * returns null and the caller keeps the content on heap. Released chunks are kept for reuse, so the direct memory
+ * held by the pool is bounded by the budget.
+ */
+public class RawdataClientBufferPool {
+
+    private final int chunkSize;
+    private final long maxBytes;
+    private final ConcurrentLinkedQueue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong heapFallbackCount = new AtomicLong();
+
+    public RawdataClientBufferPool(int chunkSize, long maxBytes) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be greater than zero: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.maxBytes = maxBytes;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return bytes of direct memory currently held by buffered content
+     */
+    public long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * @return number of allocations that did not fit the memory budget and were kept on heap
+     */
+    public long heapFallbackCount() {
+        return heapFallbackCount.get();
+    }
+
+    /**
+     * Copies the content into pooled chunks.
+     *
+     * @return the pooled content, or null if the memory budget is exhausted
+     */
+    public PooledBytes allocate(byte[] content) {
+        int chunkCount = (content.length + chunkSize - 1) / chunkSize;
+        long bytes = (long) chunkCount * chunkSize;
+        long reserved;
+        do {
+            reserved = reservedBytes.get();
+            if (reserved + bytes > maxBytes) {
+                heapFallbackCount.incrementAndGet();
+                return null;
+            }
+        } while (!reservedBytes.compareAndSet(reserved, reserved + bytes));
+
+        ByteBuffer[] chunks = new ByteBuffer[chunkCount];
+        int offset = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            ByteBuffer chunk = freeChunks.poll();
+            if (chunk == null) {
+                chunk = ByteBuffer.allocateDirect(chunkSize);
+            }
+            chunk.clear();
+            int length = Math.min(chunkSize, content.length - offset);
+            chunk.put(content, offset, length);
+            chunk.flip();
+            chunks[i] = chunk;
+            offset += length;
+        }
+        return new PooledBytes(this, chunks, content.length);
+    }
+
+    private void release(ByteBuffer[] chunks) {
+        for (ByteBuffer chunk : chunks) {
+            freeChunks.offer(chunk);
+        }
+        reservedBytes.addAndGet(-(long) chunks.length * chunkSize);
+    }
+
+    /**
+     * Content held in pooled chunks, or on heap when the pool had no room for it.
+     */
+    public static class PooledBytes {
+
+        private final RawdataClientBufferPool pool;
+        private final ByteBuffer[] chunks;
+        private final byte[] heapContent;
+        private final int length;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        PooledBytes(RawdataClientBufferPool pool, ByteBuffer[] chunks, int length) {
+            this.pool = pool;
+            this.chunks = chunks;
+            this.heapContent = null;
+            this.length = length;
+        }
+
+        private PooledBytes(byte[] heapContent) {
+            this.pool = null;
+            this.chunks = null;
+            this.heapContent = heapContent;
+            this.length = heapContent.length;
+        }
+
+        static PooledBytes heap(byte[] content) {
+            return new PooledBytes(content);
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public boolean isPooled() {
+            return chunks != null;
+        }
+
+        public byte[] toByteArray() {
+            if (heapContent != null) {
+                return heapContent;
+            }
+            if (released.get()) {
+                throw new IllegalStateException("Pooled content has been released");
+            }
+            byte[] content = new byte[length];
+            int offset = 0;
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer view = chunk.duplicate();
+                int chunkLength = view.remaining();
+                view.get(content, offset, chunkLength);
+                offset += chunkLength;
+            }
+            return content;
+        }
+
+        public void release() {
+            if (chunks != null && released.compareAndSet(false, true)) {
+                pool.release(chunks);
+            }
+        }
+    }
+}
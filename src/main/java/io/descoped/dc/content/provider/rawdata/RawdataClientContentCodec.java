@@ -0,0 +1,116 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression codecs for position entries. The codec name is recorded as "content-encoding" in the manifest entry
+ * of a compressed document.
+ */
+public enum RawdataClientContentCodec {
+
+    NONE("none") {
+        @Override
+        public byte[] compress(byte[] content, int level) {
+            return content;
+        }
+
+        @Override
+        public byte[] decompress(byte[] content) {
+            return content;
+        }
+    },
+
+    DEFLATE("deflate") {
+        @Override
+        public byte[] compress(byte[] content, int level) {
+            Deflater deflater = new Deflater(level);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+                try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater)) {
+                    deflaterOut.write(content);
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] content) {
+            Inflater inflater = new Inflater();
+            try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(content), inflater)) {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    },
+
+    GZIP("gzip") {
+        @Override
+        public byte[] compress(byte[] content, int level) {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+                try (GZIPOutputStream gzipOut = new GZIPOutputStream(out) {
+                    {
+                        def.setLevel(level);
+                    }
+                }) {
+                    gzipOut.write(content);
+                }
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] content) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    private final String codecName;
+
+    RawdataClientContentCodec(String codecName) {
+        this.codecName = codecName;
+    }
+
+    public String codecName() {
+        return codecName;
+    }
+
+    public abstract byte[] compress(byte[] content, int level);
+
+    public abstract byte[] decompress(byte[] content);
+
+    public static RawdataClientContentCodec of(String codecName) {
+        for (RawdataClientContentCodec codec : values()) {
+            if (codec.codecName.equals(codecName)) {
+                return codec;
+            }
+        }
+        if ("lz4".equals(codecName) || "zstd".equals(codecName)) {
+            throw new IllegalArgumentException("Compression codec '" + codecName + "' requires a native codec library that is not available. Use 'deflate' or 'gzip'");
+        }
+        throw new IllegalArgumentException("Unknown compression codec: " + codecName);
+    }
+}
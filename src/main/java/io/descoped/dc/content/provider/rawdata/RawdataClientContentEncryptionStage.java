@@ -0,0 +1,137 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import io.descoped.dc.api.content.ContentStreamBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * Encrypts buffered content before it is produced to rawdata.
+ * <p>
+ * The inline stage encrypts every document on the thread that buffers it. The parallel stage defers encryption
+ * of buffered entries until the position is published, and then encrypts all entries of the position concurrently
+ * on an executor.
+ */
+public abstract class RawdataClientContentEncryptionStage implements AutoCloseable {
+
+    final Function<byte[], byte[]> encryptor;
+
+    RawdataClientContentEncryptionStage(Function<byte[], byte[]> encryptor) {
+        this.encryptor = encryptor;
+    }
+
+    /*
+     * rawdata.encryption.stage = (inline | parallel)
+     * rawdata.encryption.stage.executor = (platform | virtual)
+     * rawdata.encryption.stage.threads = number of platform threads
+     */
+
+    public static RawdataClientContentEncryptionStage of(RawdataClientContentStreamConfiguration configuration, Function<byte[], byte[]> encryptor) {
+        String stage = configuration.encryptionStage();
+        if ("inline".equals(stage)) {
+            return inline(encryptor);
+        } else if ("parallel".equals(stage)) {
+            return parallel(RawdataClientExecutors.newExecutor(configuration.encryptionStageExecutor(), configuration.encryptionStageThreads(), "rawdata-encryption-"), encryptor);
+        }
+        throw new IllegalArgumentException("Unknown encryption stage: " + stage);
+    }
+
+    public static RawdataClientContentEncryptionStage inline(Function<byte[], byte[]> encryptor) {
+        return new Inline(encryptor);
+    }
+
+    public static RawdataClientContentEncryptionStage parallel(ExecutorService executor, Function<byte[], byte[]> encryptor) {
+        return new Parallel(executor, encryptor);
+    }
+
+    /**
+     * @return true if buffered entries are kept in plain text until {@link #encryptAll(ContentStreamBuffer.Builder)}
+     */
+    public abstract boolean isDeferred();
+
+    public byte[] encrypt(byte[] content) {
+        return encryptor.apply(content);
+    }
+
+    /**
+     * Replaces every entry of the builder with its encrypted content. Entry order is preserved.
+     */
+    public abstract void encryptAll(ContentStreamBuffer.Builder bufferBuilder);
+
+    @Override
+    public void close() {
+    }
+
+    static class Inline extends RawdataClientContentEncryptionStage {
+
+        Inline(Function<byte[], byte[]> encryptor) {
+            super(encryptor);
+        }
+
+        @Override
+        public boolean isDeferred() {
+            return false;
+        }
+
+        @Override
+        public void encryptAll(ContentStreamBuffer.Builder bufferBuilder) {
+            for (String contentKey : new ArrayList<>(bufferBuilder.keys())) {
+                bufferBuilder.put(contentKey, encrypt(bufferBuilder.get(contentKey)));
+            }
+        }
+    }
+
+    static class Parallel extends RawdataClientContentEncryptionStage {
+
+        private final ExecutorService executor;
+
+        Parallel(ExecutorService executor, Function<byte[], byte[]> encryptor) {
+            super(encryptor);
+            this.executor = executor;
+        }
+
+        @Override
+        public boolean isDeferred() {
+            return true;
+        }
+
+        @Override
+        public void encryptAll(ContentStreamBuffer.Builder bufferBuilder) {
+            List<String> contentKeys = new ArrayList<>(bufferBuilder.keys());
+            if (contentKeys.size() < 2) {
+                // no gain in handing a single entry off to the executor
+                for (String contentKey : contentKeys) {
+                    bufferBuilder.put(contentKey, encrypt(bufferBuilder.get(contentKey)));
+                }
+                return;
+            }
+
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>(contentKeys.size());
+            for (String contentKey : contentKeys) {
+                byte[] content = bufferBuilder.get(contentKey);
+                futures.add(CompletableFuture.supplyAsync(() -> encrypt(content), executor));
+            }
+
+            try {
+                for (int i = 0; i < contentKeys.size(); i++) {
+                    bufferBuilder.put(contentKeys.get(i), futures.get(i).join());
+                }
+            } catch (CompletionException e) {
+                futures.forEach(future -> future.cancel(false));
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import io.descoped.dc.api.content.ContentStateKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Keeps the content of unpublished positions within a memory ceiling by spilling the least recently touched
+ * positions to temp files. Spilled content is memory-mapped and read back when the position is published.
+ * <p>
+ * The manifest of a spilled position stays in memory, so only the buffered content is written to disk. Content that
+ * is buffered in plain text, because it is encrypted when its position is published, is encrypted in the spill file.
+ * <p>
+ * Positions are chosen for spilling under the lock of the spill, and are written to disk after it is released, so that
+ * buffering is not blocked by disk writes. A position is read back only after its pending writes have completed.
+ * <p>
+ * Each spill of a position is written to a new file, and the content is removed from the builder only when the file
+ * has been written. If the write fails, the file is deleted, and the content stays in memory and is accounted as such.
+ */
+class RawdataClientContentSpill implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientContentSpill.class);
+
+    private final long maxMemoryBytes;
+    private final Path directory;
+    private final Function<byte[], byte[]> encryptContent;
+    private final Function<byte[], byte[]> decryptContent;
+    // access ordered: iteration starts at the least recently touched position
+    private final Map<ContentStateKey, PositionState> positions = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private long spilledBytes;
+    private int spilledBufferCount;
+    private int spilledPositionCount;
+
+    RawdataClientContentSpill(long maxMemoryBytes, Path directory) {
+        this(maxMemoryBytes, directory, null, null);
+    }
+
+    /**
+     * @param encryptContent encrypts content before it is written to a spill file, or null to write content as buffered
+     * @param decryptContent decrypts content that is read back from a spill file
+     */
+    RawdataClientContentSpill(long maxMemoryBytes, Path directory, Function<byte[], byte[]> encryptContent, Function<byte[], byte[]> decryptContent) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.encryptContent = encryptContent;
+        this.decryptContent = decryptContent;
+    }
+
+    /**
+     * Records content buffered to a position and spills positions if the memory ceiling is exceeded.
+     */
+    void touch(ContentStateKey contentStateKey, RawdataClientContentStreamBuffer.Builder bufferBuilder, long bytes) {
+        Map<PositionState, Long> spillStates = new LinkedHashMap<>();
+        synchronized (positions) {
+            PositionState state = positions.get(contentStateKey);
+            if (state == null) {
+                state = new PositionState(bufferBuilder);
+                positions.put(contentStateKey, state);
+            }
+            state.memoryBytes += bytes;
+            memoryBytes += bytes;
+
+            Iterator<PositionState> it = positions.values().iterator();
+            while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+                PositionState leastRecentlyTouched = it.next();
+                if (leastRecentlyTouched.memoryBytes > 0) {
+                    // the content is accounted as spilled now, and written after the lock is released
+                    memoryBytes -= leastRecentlyTouched.memoryBytes;
+                    spillStates.put(leastRecentlyTouched, leastRecentlyTouched.memoryBytes);
+                    leastRecentlyTouched.memoryBytes = 0;
+                }
+            }
+        }
+        spillStates.forEach(this::spill);
+    }
+
+    /**
+     * @return the keys of spilled content of a position
+     */
+    Set<String> spilledKeys(ContentStateKey contentStateKey) {
+        synchronized (positions) {
+            PositionState state = positions.get(contentStateKey);
+            return state == null ? Set.of() : new LinkedHashSet<>(state.spilledKeys);
+        }
+    }
+
+    /**
+     * Stops tracking a position and reads spilled content back into its builder, ahead of the content that is
+     * still in memory, so that buffer order is preserved.
+     */
+    void restore(ContentStateKey contentStateKey, RawdataClientContentStreamBuffer.Builder bufferBuilder) {
+        PositionState state;
+        synchronized (positions) {
+            state = positions.remove(contentStateKey);
+            if (state == null) {
+                return;
+            }
+            state.tracked = false;
+            memoryBytes -= state.memoryBytes;
+            if (!state.spillFiles.isEmpty()) {
+                spilledBytes -= state.spillFileSize;
+                spilledBufferCount -= state.spilledKeys.size();
+                spilledPositionCount--;
+            }
+        }
+        // waits for a pending spill of the position to complete
+        synchronized (state) {
+            state.removed = true;
+            if (state.spillFiles.isEmpty()) {
+                return;
+            }
+            synchronized (bufferBuilder) {
+                Map<String, byte[]> inMemoryContent = bufferBuilder.drainContent();
+                readSpillFiles(state.spillFiles).forEach(bufferBuilder::put);
+                inMemoryContent.forEach(bufferBuilder::put);
+            }
+            state.spillFiles.forEach(RawdataClientContentSpill::deleteSpillFile);
+        }
+    }
+
+    /**
+     * Stops tracking a position and discards its spilled content.
+     */
+    void remove(ContentStateKey contentStateKey) {
+        PositionState state;
+        synchronized (positions) {
+            state = positions.remove(contentStateKey);
+            if (state == null) {
+                return;
+            }
+            state.tracked = false;
+            memoryBytes -= state.memoryBytes;
+            if (!state.spillFiles.isEmpty()) {
+                spilledBytes -= state.spillFileSize;
+                spilledBufferCount -= state.spilledKeys.size();
+                spilledPositionCount--;
+            }
+        }
+        synchronized (state) {
+            state.removed = true;
+            state.spillFiles.forEach(RawdataClientContentSpill::deleteSpillFile);
+        }
+    }
+
+    long memoryBytes() {
+        synchronized (positions) {
+            return memoryBytes;
+        }
+    }
+
+    long spilledBytes() {
+        synchronized (positions) {
+            return spilledBytes;
+        }
+    }
+
+    int spilledBufferCount() {
+        synchronized (positions) {
+            return spilledBufferCount;
+        }
+    }
+
+    int spilledPositionCount() {
+        synchronized (positions) {
+            return spilledPositionCount;
+        }
+    }
+
+    /**
+     * Writes the buffered content of a position to a new spill file. Must not be called while holding the spill lock.
+     *
+     * @param accountedBytes the memory bytes of the position that were accounted as spilled when it was chosen
+     */
+    private void spill(PositionState state, long accountedBytes) {
+        synchronized (state) {
+            if (state.removed) {
+                // the position was published or removed while it was chosen for spilling
+                return;
+            }
+            Map<String, byte[]> content;
+            synchronized (state.bufferBuilder) {
+                content = state.bufferBuilder.copyContent();
+            }
+            if (content.isEmpty()) {
+                return;
+            }
+            Path spillFile = null;
+            long fileBytes = 0;
+            try {
+                spillFile = Files.createTempFile(directory, "rawdata-spill-", ".bin");
+                try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.WRITE)) {
+                    for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                        byte[] value = encryptContent != null ? encryptContent.apply(entry.getValue()) : entry.getValue();
+                        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + key.length + Integer.BYTES);
+                        record.putInt(key.length).put(key).putInt(value.length).flip();
+                        writeFully(channel, record);
+                        writeFully(channel, ByteBuffer.wrap(value));
+                        fileBytes += record.capacity() + value.length;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // the content is still in the builder, so it is accounted as in memory again
+                LOG.warn("Unable to spill buffered content to: {}. The content is kept in memory", directory, e);
+                if (spillFile != null) {
+                    deleteSpillFile(spillFile);
+                }
+                synchronized (positions) {
+                    if (state.tracked) {
+                        state.memoryBytes += accountedBytes;
+                        memoryBytes += accountedBytes;
+                    }
+                }
+                return;
+            }
+            synchronized (positions) {
+                if (state.spillFiles.isEmpty()) {
+                    spilledPositionCount++;
+                }
+                state.spillFiles.add(spillFile);
+                state.spillFileSize += fileBytes;
+                spilledBytes += fileBytes;
+                for (String contentKey : content.keySet()) {
+                    if (state.spilledKeys.add(contentKey)) {
+                        spilledBufferCount++;
+                    }
+                }
+            }
+            // the spilled keys are recorded first, so that the content is found either in the builder or the spill files
+            synchronized (state.bufferBuilder) {
+                state.bufferBuilder.removeContent(content);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private Map<String, byte[]> readSpillFiles(List<Path> spillFiles) {
+        Map<String, byte[]> content = new LinkedHashMap<>();
+        for (Path spillFile : spillFiles) {
+            try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (mapped.hasRemaining()) {
+                    byte[] key = new byte[mapped.getInt()];
+                    mapped.get(key);
+                    byte[] value = new byte[mapped.getInt()];
+                    mapped.get(value);
+                    // a key that was spilled more than once keeps its first position and its latest content
+                    content.put(new String(key, StandardCharsets.UTF_8), decryptContent != null ? decryptContent.apply(value) : value);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return content;
+    }
+
+    private static void deleteSpillFile(Path spillFile) {
+        try {
+            Files.deleteIfExists(spillFile);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete spill file: {}", spillFile, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        List<PositionState> states;
+        synchronized (positions) {
+            states = new ArrayList<>(positions.values());
+            states.forEach(state -> state.tracked = false);
+            positions.clear();
+            memoryBytes = 0;
+            spilledBytes = 0;
+            spilledBufferCount = 0;
+            spilledPositionCount = 0;
+        }
+        for (PositionState state : states) {
+            synchronized (state) {
+                state.removed = true;
+                state.spillFiles.forEach(RawdataClientContentSpill::deleteSpillFile);
+            }
+        }
+    }
+
+    static class PositionState {
+        final RawdataClientContentStreamBuffer.Builder bufferBuilder;
+        final Set<String> spilledKeys = new LinkedHashSet<>(); // guarded by positions
+        long memoryBytes; // guarded by positions
+        long spillFileSize; // guarded by positions
+        boolean tracked = true; // guarded by positions
+        final List<Path> spillFiles = new ArrayList<>(); // in spill order, added to under this and positions
+        boolean removed; // guarded by this
+
+        PositionState(RawdataClientContentStreamBuffer.Builder bufferBuilder) {
+            this.bufferBuilder = bufferBuilder;
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package io.descoped.dc.content.provider.rawdata;
 
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.descoped.dc.api.content.ContentStateKey;
 import io.descoped.dc.api.content.ContentStore;
 import io.descoped.dc.api.content.ContentStream;
-import io.descoped.dc.api.content.ContentStreamBuffer;
-import io.descoped.dc.api.content.ContentStreamProducer;
 import io.descoped.dc.api.content.HealthContentStreamMonitor;
 import io.descoped.dc.api.content.HttpRequestInfo;
 import io.descoped.dc.api.content.MetadataContent;
@@ -14,63 +14,203 @@ import io.descoped.rawdata.api.RawdataClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class RawdataClientContentStore implements ContentStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(RawdataClientContentStore.class);
+    private static final byte[] DUPLICATE_CONTENT = new byte[0];
 
     private final HealthContentStreamMonitor monitor;
     private final RawdataClientContentStream contentStream;
-    private final EncryptionClient encryptionClient;
+    private final RawdataClientLatencyMetrics latencyMetrics;
+    private final ThreadLocal<EncryptionClient> encryptionClient = ThreadLocal.withInitial(() -> new EncryptionClient(Algorithm.AES256));
+    private final RawdataClientEncryptionKeyCache.Lease secretKeyLease;
     private final byte[] secretKey;
-    private final Map<ContentStateKey, ContentStreamBuffer.Builder> contentBuffers = new ConcurrentHashMap<>();
-    private final Map<String, Lock> lockByTopic = new ConcurrentHashMap<>();
+    private final RawdataClientContentEncryptionStage encryptionStage;
+    private final boolean asyncPublish;
+    private final RawdataClientContentCodec compressionCodec;
+    private final int compressionMinSize;
+    private final int compressionLevel;
+    private final RawdataClientContentSpill contentSpill;
+    private final RawdataClientWriteAheadLog writeAheadLog;
+    private final RawdataClientManifestInterner manifestInterner;
+    private final int streamChunkSize;
+    private final RawdataClientDedupIndex dedupIndex;
+    // content hashes of buffered entries, which are recorded in the dedup index when their position is published
+    private final Map<ContentStateKey, Map<String, byte[]>> pendingContentHashes = new ConcurrentHashMap<>();
+    private final Map<ContentStateKey, RawdataClientContentStreamBuffer.Builder> contentBuffers = new ConcurrentHashMap<>();
+    private final RawdataClientBufferCounters bufferCounters = new RawdataClientBufferCounters();
+    private final RawdataClientTopicLocks topicLocks = new RawdataClientTopicLocks();
     private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public RawdataClientContentStore(RawdataClient client, final char[] encryptionKey, final byte[] encryptionSalt) {
-        this.encryptionClient = new EncryptionClient(Algorithm.AES256);
+        this(client, encryptionKey, encryptionSalt, RawdataClientContentStreamConfiguration.defaults());
+    }
 
+    public RawdataClientContentStore(RawdataClient client, final char[] encryptionKey, final byte[] encryptionSalt, RawdataClientContentStreamConfiguration configuration) {
         if (encryptionKey != null && encryptionKey.length > 0 && encryptionSalt != null && encryptionSalt.length > 0) {
-            this.secretKey = encryptionClient.generateSecretKey(encryptionKey, encryptionSalt).getEncoded();
+            this.secretKeyLease = RawdataClientEncryptionKeyCache.shared().acquire(encryptionKey, encryptionSalt,
+                    (key, salt) -> encryptionClient.get().generateSecretKey(key, salt).getEncoded(),
+                    configuration.encryptionKeyRetentionMillis());
+            this.secretKey = secretKeyLease.secretKey();
         } else {
+            this.secretKeyLease = null;
             this.secretKey = null;
         }
 
-        this.contentStream = new RawdataClientContentStream(client, this::tryEncryptContent);
+        this.encryptionStage = secretKey != null ?
+                RawdataClientContentEncryptionStage.of(configuration, this::tryEncryptContent) :
+                RawdataClientContentEncryptionStage.inline(this::tryEncryptContent);
+        this.asyncPublish = configuration.isAsyncPublish();
+        this.compressionCodec = RawdataClientContentCodec.of(configuration.compressionCodec());
+        this.compressionMinSize = configuration.compressionMinSize();
+        this.compressionLevel = configuration.compressionLevel();
+        // content that is encrypted when its position is published is still in plain text when it is spilled
+        boolean sealSpill = secretKey != null && encryptionStage.isDeferred();
+        this.contentSpill = configuration.isBufferSpill() ?
+                new RawdataClientContentSpill(configuration.bufferSpillMaxMemoryBytes(), Path.of(configuration.bufferSpillDirectory()),
+                        sealSpill ? this::tryEncryptContent : null, sealSpill ? this::tryDecryptContent : null) :
+                null;
+        this.writeAheadLog = configuration.isWriteAheadLog() ?
+                new RawdataClientWriteAheadLog(Path.of(configuration.writeAheadLogDirectory()), configuration.writeAheadLogSegmentSize(), configuration.isWriteAheadLogSync(), secretKey != null) :
+                null;
+        this.streamChunkSize = configuration.streamChunkSize();
+        if (streamChunkSize < 1) {
+            throw new IllegalArgumentException("rawdata.stream.chunk-size must be greater than zero: " + streamChunkSize);
+        }
+        this.manifestInterner = configuration.manifestInternSize() > 0 ? new RawdataClientManifestInterner(configuration.manifestInternSize()) : null;
+        this.dedupIndex = configuration.isDedup() ?
+                new RawdataClientDedupIndex(configuration.dedupTopics(), configuration.dedupMaxEntries(),
+                        configuration.dedupDirectory() != null ? Path.of(configuration.dedupDirectory()) : null, configuration.dedupSpillSlots()) :
+                null;
+        this.contentStream = new RawdataClientContentStream(client, this::tryEncryptContent, this::tryDecryptContent, configuration);
+        this.latencyMetrics = contentStream.latencyMetrics();
         this.monitor = new HealthContentStreamMonitor(this::isClosed, this::activePositionCount, this::activeBufferCount);
 
     }
 
+    private byte[] tryCompressContent(MetadataContent manifest, byte[] content) {
+        if (compressionCodec == RawdataClientContentCodec.NONE || content.length < compressionMinSize) {
+            return content;
+        }
+        byte[] compressedContent = compressionCodec.compress(content, compressionLevel);
+        if (compressedContent.length >= content.length) {
+            return content;
+        }
+        ((ObjectNode) manifest.getElementNode()).put(RawdataClientContentStreamBuffer.CONTENT_ENCODING, compressionCodec.codecName());
+        return compressedContent;
+    }
+
+    private byte[] encrypt(String topic, byte[] content) {
+        long start = System.nanoTime();
+        byte[] encryptedContent = encryptionStage.encrypt(content);
+        latencyMetrics.record(topic, RawdataClientLatencyMetrics.Operation.ENCRYPT, System.nanoTime() - start);
+        return encryptedContent;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
     private byte[] tryEncryptContent(byte[] content) {
         if (secretKey != null) {
-            return encryptionClient.encrypt(secretKey, content);
+            return encryptionClient.get().encrypt(secretKey, content);
+        }
+        return content;
+    }
+
+    private byte[] tryDecryptContent(byte[] content) {
+        if (secretKey != null) {
+            return encryptionClient.get().decrypt(secretKey, content);
         }
         return content;
     }
 
     @Override
     public void lock(String topic) {
-        Lock lock = lockByTopic.computeIfAbsent(topic, t -> new ReentrantLock());
         try {
-            lock.lockInterruptibly();
+            topicLocks.lock(topic);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @return true if the topic was locked within the timeout
+     */
+    public boolean tryLock(String topic, long timeout, TimeUnit unit) {
+        try {
+            return topicLocks.tryLock(topic, timeout, unit);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalMonitorStateException if the topic is not locked by the current thread
+     */
     @Override
     public void unlock(String topic) {
-        Lock lock = lockByTopic.get(topic);
-        lock.unlock();
+        topicLocks.unlock(topic);
+    }
+
+    /**
+     * @return the topic lock table with its contention metrics
+     */
+    public RawdataClientTopicLocks topicLocks() {
+        return topicLocks;
+    }
+
+    /**
+     * @return buffer, encrypt, manifest, produce and publish latency histograms, in total and per topic
+     */
+    public RawdataClientLatencyMetrics latencyMetrics() {
+        return latencyMetrics;
+    }
+
+    /**
+     * @return buffered entry, byte and position counts, in total and per topic
+     */
+    public RawdataClientBufferCounters bufferCounters() {
+        return bufferCounters;
+    }
+
+    /**
+     * @return the index of published content hashes with its hit and miss counters, or null when deduplication is disabled
+     */
+    public RawdataClientDedupIndex dedupIndex() {
+        return dedupIndex;
+    }
+
+    /**
+     * Returns the content hash of an entry, computed from the plain text before compression and encryption.
+     *
+     * @return {@link #DUPLICATE_CONTENT} if the entry equals the last published content of its content key at the
+     * position, or null when the topic is not deduplicated
+     */
+    private byte[] contentHash(String topic, String position, String contentKey, byte[] content) {
+        if (dedupIndex == null || !dedupIndex.isDeduplicated(topic)) {
+            return null;
+        }
+        byte[] contentHash = RawdataClientDedupIndex.hash(content);
+        return dedupIndex.isPublished(topic, position, contentKey, contentHash) ? DUPLICATE_CONTENT : contentHash;
     }
 
     @Override
@@ -85,83 +225,337 @@ public class RawdataClientContentStore implements ContentStore {
 
     @Override
     public Set<String> contentKeys(String topic, String position) {
-        ContentStreamBuffer.Builder builder = contentBuffers.get(new ContentStateKey(topic, position));
-        return (builder == null ? new HashSet<>() : builder.keys());
+        ContentStateKey contentStateKey = new ContentStateKey(topic, position);
+        RawdataClientContentStreamBuffer.Builder builder = contentBuffers.get(contentStateKey);
+        Set<String> contentKeys = new LinkedHashSet<>();
+        if (contentSpill != null) {
+            contentKeys.addAll(contentSpill.spilledKeys(contentStateKey));
+        }
+        if (builder != null) {
+            synchronized (builder) {
+                contentKeys.addAll(builder.keys());
+            }
+        }
+        return contentKeys;
     }
 
     @Override
     public void addPaginationDocument(String topic, String position, String contentKey, byte[] content, HttpRequestInfo httpRequestInfo) {
-        long past = System.currentTimeMillis();
+        long start = System.nanoTime();
         String paginationDocumentTopic = topic + "-pages";
-        ContentStreamProducer producer = contentStream.producer(paginationDocumentTopic);
-        ContentStreamBuffer.Builder bufferBuilder = producer.builder();
+        byte[] contentHash = contentHash(paginationDocumentTopic, position, contentKey, content);
+        if (contentHash == DUPLICATE_CONTENT) {
+            return;
+        }
+        RawdataClientContentStreamProducer producer = contentStream.producer(paginationDocumentTopic);
+        RawdataClientContentStreamBuffer.Builder bufferBuilder = producer.builder();
+        // sizes are recorded before compression and encryption, so that they do not depend on the configured stages
+        int contentLength = content.length;
 
         bufferBuilder.position(position);
 
         MetadataContent manifest = getMetadataContent(paginationDocumentTopic, position, contentKey, content, MetadataContent.ResourceType.PAGE, httpRequestInfo, new LinkedHashMap<>());
 
-        content = tryEncryptContent(content);
+        content = tryCompressContent(manifest, content);
+        content = encrypt(paginationDocumentTopic, content);
 
         bufferBuilder.buffer(contentKey, content, manifest);
         producer.produce(bufferBuilder);
+        producer.recycle(bufferBuilder);
 
         producer.publish(position);
+        if (contentHash != null) {
+            dedupIndex.published(paginationDocumentTopic, position, contentKey, contentHash);
+        }
 
         monitor.incrementPaginationDocumentCount();
-        monitor.addPaginationDocumentSize(content.length);
-        monitor.updateLastPaginationDocumentWriteDuration(System.currentTimeMillis() - past);
+        monitor.addPaginationDocumentSize(contentLength);
+        monitor.updateLastPaginationDocumentWriteDuration(elapsedMillis(start));
     }
 
     @Override
     public void bufferPaginationEntryDocument(String topic, String position, String contentKey, byte[] content, HttpRequestInfo httpRequestInfo, Map<String, Object> state) {
-        long past = System.currentTimeMillis();
-        ContentStreamProducer producer = contentStream.producer(topic);
-        ContentStreamBuffer.Builder bufferBuilder = contentBuffers.computeIfAbsent(new ContentStateKey(topic, position), contentBuilder -> producer.builder());
+        long start = System.nanoTime();
+        byte[] contentHash = contentHash(topic, position, contentKey, content);
+        if (contentHash == DUPLICATE_CONTENT) {
+            return;
+        }
+        RawdataClientContentStreamProducer producer = contentStream.producer(topic);
+        ContentStateKey contentStateKey = new ContentStateKey(topic, position);
+        RawdataClientContentStreamBuffer.Builder bufferBuilder = contentBuffers.computeIfAbsent(contentStateKey, contentBuilder -> producer.builder());
+        if (contentHash != null) {
+            pendingContentHashes.computeIfAbsent(contentStateKey, key -> new ConcurrentHashMap<>()).put(contentKey, contentHash);
+        }
         MetadataContent manifest = getMetadataContent(topic, position, contentKey, content, MetadataContent.ResourceType.ENTRY, httpRequestInfo, state);
+        int contentLength = content.length;
 
-        content = tryEncryptContent(content);
+        content = tryCompressContent(manifest, content);
+        if (!encryptionStage.isDeferred()) {
+            content = encrypt(topic, content);
+        }
 
-        bufferBuilder.position(position).buffer(contentKey, content, manifest);
+        buffer(topic, position, contentStateKey, bufferBuilder, contentKey, content, manifest);
 
         monitor.incrementEntryBufferCount();
-        monitor.addEntryBufferSize(content.length);
-        monitor.updateLastEntryBufferWriteDuration(System.currentTimeMillis() - past);
+        monitor.addEntryBufferSize(contentLength);
+        latencyMetrics.record(topic, RawdataClientLatencyMetrics.Operation.BUFFER, System.nanoTime() - start);
+        monitor.updateLastEntryBufferWriteDuration(elapsedMillis(start));
     }
 
     @Override
     public void bufferDocument(String topic, String position, String contentKey, byte[] content, HttpRequestInfo httpRequestInfo) {
-        long past = System.currentTimeMillis();
-        ContentStreamProducer producer = contentStream.producer(topic);
-        ContentStreamBuffer.Builder bufferBuilder = contentBuffers.computeIfAbsent(new ContentStateKey(topic, position), contentBuilder -> producer.builder());
+        long start = System.nanoTime();
+        byte[] contentHash = contentHash(topic, position, contentKey, content);
+        if (contentHash == DUPLICATE_CONTENT) {
+            return;
+        }
+        RawdataClientContentStreamProducer producer = contentStream.producer(topic);
+        ContentStateKey contentStateKey = new ContentStateKey(topic, position);
+        RawdataClientContentStreamBuffer.Builder bufferBuilder = contentBuffers.computeIfAbsent(contentStateKey, contentBuilder -> producer.builder());
+        if (contentHash != null) {
+            pendingContentHashes.computeIfAbsent(contentStateKey, key -> new ConcurrentHashMap<>()).put(contentKey, contentHash);
+        }
         MetadataContent manifest = getMetadataContent(topic, position, contentKey, content, MetadataContent.ResourceType.DOCUMENT, httpRequestInfo, new LinkedHashMap<>());
+        int contentLength = content.length;
+
+        content = tryCompressContent(manifest, content);
+        if (!encryptionStage.isDeferred()) {
+            content = encrypt(topic, content);
+        }
+
+        buffer(topic, position, contentStateKey, bufferBuilder, contentKey, content, manifest);
 
-        content = tryEncryptContent(content);
+        monitor.incrementDocumentBufferCount();
+        monitor.addDocumentBufferSize(contentLength);
+        latencyMetrics.record(topic, RawdataClientLatencyMetrics.Operation.BUFFER, System.nanoTime() - start);
+        monitor.updateLastDocumentBufferWriteDuration(elapsedMillis(start));
+    }
 
-        bufferBuilder.position(position).buffer(contentKey, content, manifest);
+    /**
+     * Buffers a document that is read from a stream, without holding the whole document in one array. The document is
+     * stored as entries of {@code rawdata.stream.chunk-size} bytes, which are encrypted one at a time. The manifest
+     * entry of the document lists the chunk keys in {@code content-chunks}, and is stored with the last chunk.
+     * Streamed documents are neither compressed nor deduplicated.
+     * <p>
+     * The chunks are buffered like other entries until the position is published, so the whole document is held in
+     * memory unless buffered content is spilled to disk ({@code rawdata.buffer.spill.max-memory-bytes}).
+     * <p>
+     * Consumers read the document with {@link RawdataClientMessageBuffer#openStream(String)}.
+     *
+     * @return number of bytes read from the stream
+     */
+    public long bufferDocument(String topic, String position, String contentKey, InputStream content, HttpRequestInfo httpRequestInfo) throws IOException {
+        return bufferDocument(topic, position, contentKey, Channels.newChannel(content), httpRequestInfo);
+    }
+
+    /**
+     * Buffers a document that is read from a channel. See {@link #bufferDocument(String, String, String, InputStream, HttpRequestInfo)}.
+     *
+     * @param content a blocking channel
+     * @return number of bytes read from the channel
+     * @throws IllegalArgumentException if the channel is in non-blocking mode
+     */
+    public long bufferDocument(String topic, String position, String contentKey, ReadableByteChannel content, HttpRequestInfo httpRequestInfo) throws IOException {
+        if (content instanceof SelectableChannel && !((SelectableChannel) content).isBlocking()) {
+            // a non-blocking channel returns no bytes until data arrives, and the chunk reader would spin
+            throw new IllegalArgumentException("Streamed documents must be read from a blocking channel");
+        }
+        long start = System.nanoTime();
+        RawdataClientContentStreamProducer producer = contentStream.producer(topic);
+        ContentStateKey contentStateKey = new ContentStateKey(topic, position);
+        RawdataClientContentStreamBuffer.Builder bufferBuilder = contentBuffers.computeIfAbsent(contentStateKey, contentBuilder -> producer.builder());
+
+        List<String> chunkKeys = new ArrayList<>();
+        long contentLength = 0;
+        // read one chunk ahead, so that the manifest entry can be stored with the last chunk
+        byte[] chunk = readChunk(content);
+        for (; ; ) {
+            byte[] nextChunk = chunk.length == streamChunkSize ? readChunk(content) : null;
+            boolean lastChunk = nextChunk == null || nextChunk.length == 0;
+            String chunkKey = RawdataClientContentStreamBuffer.chunkKey(contentKey, chunkKeys.size());
+            chunkKeys.add(chunkKey);
+            contentLength += chunk.length;
+
+            MetadataContent manifest = null;
+            if (lastChunk) {
+                manifest = getMetadataContent(topic, position, contentKey, new byte[0], MetadataContent.ResourceType.DOCUMENT, httpRequestInfo, new LinkedHashMap<>());
+                ObjectNode elementNode = (ObjectNode) manifest.getElementNode();
+                // the length of the whole document, which is known when the last chunk has been read
+                elementNode.put("content-length", contentLength);
+                ArrayNode chunksNode = elementNode.putArray(RawdataClientContentStreamBuffer.CONTENT_CHUNKS);
+                chunkKeys.forEach(chunksNode::add);
+            }
+            monitor.addDocumentBufferSize(chunk.length);
+            if (!encryptionStage.isDeferred()) {
+                chunk = encrypt(topic, chunk);
+            }
+            buffer(topic, position, contentStateKey, bufferBuilder, chunkKey, chunk, manifest);
+
+            if (lastChunk) {
+                break;
+            }
+            chunk = nextChunk;
+        }
 
         monitor.incrementDocumentBufferCount();
-        monitor.addDocumentBufferSize(content.length);
-        monitor.updateLastDocumentBufferWriteDuration(System.currentTimeMillis() - past);
+        latencyMetrics.record(topic, RawdataClientLatencyMetrics.Operation.BUFFER, System.nanoTime() - start);
+        monitor.updateLastDocumentBufferWriteDuration(elapsedMillis(start));
+        return contentLength;
+    }
+
+    /**
+     * @return a full chunk, or a shorter chunk at the end of the stream
+     */
+    private byte[] readChunk(ReadableByteChannel content) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(streamChunkSize);
+        int read;
+        do {
+            read = content.read(chunk);
+        } while (read >= 0 && chunk.hasRemaining());
+        return chunk.hasRemaining() ? Arrays.copyOf(chunk.array(), chunk.position()) : chunk.array();
+    }
+
+    private void buffer(String topic, String position, ContentStateKey contentStateKey, RawdataClientContentStreamBuffer.Builder bufferBuilder, String contentKey, byte[] content, MetadataContent manifest) {
+        bufferContent(topic, position, contentStateKey, bufferBuilder, contentKey, content, manifest);
+        if (writeAheadLog != null) {
+            // content that is encrypted when the position is published, is encrypted separately for the log
+            boolean sealed = secretKey != null && encryptionStage.isDeferred();
+            byte[] manifestJson = tryEncryptContent(RawdataClientManifestWriter.write(manifest != null ? List.of(manifest) : List.of()));
+            writeAheadLog.append(topic, position, contentKey, secretKey != null ? RawdataClientWriteAheadLog.ENCRYPTED : 0, manifestJson, sealed ? tryEncryptContent(content) : content);
+        }
+    }
+
+    private void bufferContent(String topic, String position, ContentStateKey contentStateKey, RawdataClientContentStreamBuffer.Builder bufferBuilder, String contentKey, byte[] content, MetadataContent manifest) {
+        long replacedBytes = bufferBuilder.bufferEntry(position, contentKey, content, manifest);
+        // the tally is updated under the map entry of the builder, so that it is not re-created after the position was published
+        contentBuffers.computeIfPresent(contentStateKey, (key, current) -> {
+            if (current == bufferBuilder) {
+                bufferCounters.add(topic, key, replacedBytes < 0 ? 1 : 0, content.length - Math.max(replacedBytes, 0));
+            }
+            return current;
+        });
+        if (contentSpill != null) {
+            // must not be called while holding the builder monitor, since spilling locks the builders it drains
+            contentSpill.touch(contentStateKey, bufferBuilder, content.length);
+        }
     }
 
     @Override
     public void publish(String topic, String... positions) {
-        long past = System.currentTimeMillis();
-        ContentStreamProducer producer = contentStream.producer(topic);
+        long start = System.nanoTime();
+        RawdataClientContentStreamProducer producer = contentStream.producer(topic);
+        // a failed asynchronous publish is reported before the positions of this call are produced, so that the caller can retry them
+        producer.checkPublishFailure();
+        Map<String, Map<String, byte[]>> publishedContentHashes = dedupIndex != null ? new LinkedHashMap<>() : null;
         for (String position : positions) {
             ContentStateKey contentStateKey = new ContentStateKey(topic, position);
-            ContentStreamBuffer.Builder bufferBuilder = contentBuffers.computeIfAbsent(contentStateKey, contentBuilder -> producer.builder());
-
+            RawdataClientContentStreamBuffer.Builder bufferBuilder = contentBuffers.computeIfAbsent(contentStateKey, contentBuilder -> producer.builder());
+            if (dedupIndex != null) {
+                Map<String, byte[]> contentHashes = pendingContentHashes.remove(contentStateKey);
+                if (contentHashes != null) {
+                    publishedContentHashes.put(position, contentHashes);
+                }
+                if (dedupIndex.isDeduplicated(topic) && bufferBuilder.keys().isEmpty() && (contentSpill == null || contentSpill.spilledKeys(contentStateKey).isEmpty())) {
+                    // all entries of the position were published before
+                    removeContentBuffer(contentStateKey);
+                    producer.recycle(bufferBuilder);
+                    continue;
+                }
+            }
+
+            if (contentSpill != null) {
+                contentSpill.restore(contentStateKey, bufferBuilder);
+            }
+            if (encryptionStage.isDeferred()) {
+                long encryptStart = System.nanoTime();
+                encryptionStage.encryptAll(bufferBuilder);
+                latencyMetrics.record(topic, RawdataClientLatencyMetrics.Operation.ENCRYPT, System.nanoTime() - encryptStart);
+            }
+            int bufferCount = bufferBuilder.keys().size(); // count before the manifest buffer is added
+            long produceStart = System.nanoTime();
             producer.produce(bufferBuilder);
-            monitor.addPublishedBufferCount(bufferBuilder.keys().size() - 1); // subtract manifest buffer
-            monitor.updateLastPublishedBufferCount(bufferBuilder.keys().size() - 1);
-            contentBuffers.remove(contentStateKey);
+            latencyMetrics.record(topic, RawdataClientLatencyMetrics.Operation.PRODUCE, System.nanoTime() - produceStart);
+            monitor.addPublishedBufferCount(bufferCount);
+            monitor.updateLastPublishedBufferCount(bufferCount);
+            removeContentBuffer(contentStateKey);
+            producer.recycle(bufferBuilder);
         }
-        producer.publish(positions);
 
+        if (asyncPublish || producer.isBatching()) {
+            // positions are handed off to the producer; the caller continues while the backend write is pending
+            producer.handOffAsync(positions).whenComplete((v, e) -> {
+                if (e != null) {
+                    // the positions are reported by the next publish, and stay in the write-ahead log
+                    LOG.error("Error publishing positions {} to topic: {}", Arrays.toString(positions), topic, e);
+                    return;
+                }
+                if (writeAheadLog != null) {
+                    writeAheadLog.published(topic, positions);
+                }
+                recordPublishedContentHashes(topic, publishedContentHashes);
+                updatePublishMonitor(topic, positions.length, start);
+            });
+        } else {
+            producer.publish(positions);
+            if (writeAheadLog != null) {
+                writeAheadLog.published(topic, positions);
+            }
+            recordPublishedContentHashes(topic, publishedContentHashes);
+            updatePublishMonitor(topic, positions.length, start);
+        }
+    }
+
+    /**
+     * Removes the builder of a position together with its tally of buffered content.
+     */
+    private void removeContentBuffer(ContentStateKey contentStateKey) {
+        contentBuffers.computeIfPresent(contentStateKey, (key, bufferBuilder) -> {
+            bufferCounters.remove(key);
+            return null;
+        });
+    }
+
+    private void recordPublishedContentHashes(String topic, Map<String, Map<String, byte[]>> publishedContentHashes) {
+        if (publishedContentHashes == null) {
+            return;
+        }
+        publishedContentHashes.forEach((position, contentHashes) ->
+                contentHashes.forEach((contentKey, contentHash) -> dedupIndex.published(topic, position, contentKey, contentHash)));
+    }
+
+    /**
+     * Buffers the entries of positions that were not published before the previous content store was stopped. Must be
+     * called before content is buffered.
+     *
+     * @return number of replayed entries
+     * @throws IllegalStateException if the log holds encrypted entries and this content store has no encryption key
+     */
+    public int replayWriteAheadLog() {
+        if (writeAheadLog == null) {
+            return 0;
+        }
+        List<RawdataClientWriteAheadLog.Entry> entries = writeAheadLog.replay();
+        for (RawdataClientWriteAheadLog.Entry entry : entries) {
+            RawdataClientContentStreamProducer producer = contentStream.producer(entry.topic);
+            ContentStateKey contentStateKey = new ContentStateKey(entry.topic, entry.position);
+            RawdataClientContentStreamBuffer.Builder bufferBuilder = contentBuffers.computeIfAbsent(contentStateKey, contentBuilder -> producer.builder());
+            List<MetadataContent> manifests = RawdataClientManifestWriter.read(entry.encrypted ? tryDecryptContent(entry.manifestJson) : entry.manifestJson);
+            MetadataContent manifest = manifests.isEmpty() ? null : manifests.get(0); // chunks of a streamed document have no manifest entry
+            // the entry is buffered as the encryption stage of this store expects it, regardless of the stage that logged it
+            byte[] content = entry.encrypted ? tryDecryptContent(entry.content) : entry.content;
+            if (!encryptionStage.isDeferred()) {
+                content = tryEncryptContent(content);
+            }
+            bufferContent(entry.topic, entry.position, contentStateKey, bufferBuilder, entry.contentKey, content, manifest);
+        }
+        return entries.size();
+    }
+
+    private void updatePublishMonitor(String topic, int positionCount, long start) {
+        latencyMetrics.record(topic, RawdataClientLatencyMetrics.Operation.PUBLISH, System.nanoTime() - start);
         monitor.updateLastSeen();
-        monitor.addPublishedPositionCount(positions.length);
-        monitor.updateLastPublishedPositionWriteDuration(System.currentTimeMillis() - past);
+        monitor.addPublishedPositionCount(positionCount);
+        monitor.updateLastPublishedPositionWriteDuration(elapsedMillis(start));
     }
 
     @Override
@@ -170,7 +564,7 @@ public class RawdataClientContentStore implements ContentStore {
     }
 
     MetadataContent getMetadataContent(String topic, String position, String contentKey, byte[] content, MetadataContent.ResourceType resourceType, HttpRequestInfo httpRequestInfo, Map<String, Object> state) {
-        return new MetadataContent.Builder()
+        MetadataContent metadataContent = new MetadataContent.Builder()
                 .resourceType(resourceType)
                 .correlationId(httpRequestInfo.getCorrelationIds())
                 .url(httpRequestInfo.getUrl())
@@ -185,6 +579,7 @@ public class RawdataClientContentStore implements ContentStore {
                 .responseHeaders(httpRequestInfo.getResponseHeaders())
                 .state(state)
                 .build();
+        return manifestInterner != null ? manifestInterner.intern(metadataContent) : metadataContent;
     }
 
     @Override
@@ -196,7 +591,10 @@ public class RawdataClientContentStore implements ContentStore {
     public void closeTopic(String topic) {
         lock(topic);
         try {
+            // the producer has drained its pending writes when it is closed, and later callbacks skip the closed topic
             contentStream.closeAndRemoveProducer(topic);
+            latencyMetrics.removeTopic(topic);
+            bufferCounters.removeTopic(topic);
         } finally {
             unlock(topic);
         }
@@ -205,18 +603,53 @@ public class RawdataClientContentStore implements ContentStore {
     @Override
     public void close() throws Exception {
         if (closed.compareAndSet(false, true)) {
-            contentStream.close();
+            try {
+                contentStream.close();
+            } finally {
+                if (contentSpill != null) {
+                    contentSpill.close();
+                }
+                if (writeAheadLog != null) {
+                    writeAheadLog.close();
+                }
+                if (dedupIndex != null) {
+                    dedupIndex.close();
+                }
+                encryptionStage.close();
+                if (secretKeyLease != null) {
+                    secretKeyLease.close();
+                }
+            }
             LOG.debug("Closed content stream!");
         }
     }
 
     Integer activePositionCount() {
-        return contentBuffers.keySet().size();
+        return (int) bufferCounters.positionCount();
     }
 
     Integer activeBufferCount() {
-        AtomicInteger bufferCount = new AtomicInteger();
-        contentBuffers.values().forEach(bufferBuilder -> bufferCount.addAndGet(bufferBuilder.keys().size()));
-        return bufferCount.get();
+        return (int) bufferCounters.entryCount();
+    }
+
+    /**
+     * @return the number of buffered entries whose content is held in memory
+     */
+    public Integer inMemoryBufferCount() {
+        return activeBufferCount() - spilledBufferCount();
+    }
+
+    /**
+     * @return the number of buffered positions with content in a spill file, or 0 when spilling is disabled
+     */
+    public Integer spilledPositionCount() {
+        return contentSpill == null ? 0 : contentSpill.spilledPositionCount();
+    }
+
+    /**
+     * @return the number of buffered entries whose content is in a spill file, or 0 when spilling is disabled
+     */
+    public Integer spilledBufferCount() {
+        return contentSpill == null ? 0 : contentSpill.spilledBufferCount();
     }
 }
@@ -88,14 +88,17 @@ public class RawdataClientContentStoreInitializer implements ContentStoreInitial
 
         if (encryptionProviderMap.isEmpty()) {
             RawdataClient client = ProviderConfigurator.configure(configuration, configuration.get("rawdata.client.provider"), RawdataClientInitializer.class);
-            return new RawdataClientContentStore(client, null, null);
+            return replayWriteAheadLog(new RawdataClientContentStore(client, null, null, RawdataClientContentStreamConfiguration.of(configuration)));
 
         } else {
             // Set in RecoveryContentStoreComponent
             boolean ignoreRawdataEncryptionCredentialsDuringRecovery = Boolean.parseBoolean(configuration.get("recovery.rawdata.encryption.credentials.ignore"));
             if (ignoreRawdataEncryptionCredentialsDuringRecovery) {
                 RawdataClient client = ProviderConfigurator.configure(configuration, configuration.get("rawdata.client.provider"), RawdataClientInitializer.class);
-                return new RawdataClientContentStore(client, null, null);
+                // a store without the encryption key cannot replay the encrypted write-ahead log, and must not append to it
+                Map<String, String> recoveryConfiguration = new LinkedHashMap<>(configuration);
+                recoveryConfiguration.remove("rawdata.wal.directory");
+                return new RawdataClientContentStore(client, null, null, RawdataClientContentStreamConfiguration.of(recoveryConfiguration));
             }
 
             LOG.debug("Load encryption credentials from: {}", encryptionProvider == null ? "application configuration" : encryptionProvider);
@@ -114,7 +117,7 @@ public class RawdataClientContentStoreInitializer implements ContentStoreInitial
                 encryptionSaltSecretValue = secretManagerClient.readBytes(encryptionSaltSecretName);
 
                 RawdataClient client = ProviderConfigurator.configure(configuration, configuration.get("rawdata.client.provider"), RawdataClientInitializer.class);
-                return new RawdataClientContentStore(client, encryptionKeySecretValue, encryptionSaltSecretValue);
+                return replayWriteAheadLog(new RawdataClientContentStore(client, encryptionKeySecretValue, encryptionSaltSecretValue, RawdataClientContentStreamConfiguration.of(configuration)));
 
             } finally {
                 if (encryptionKeySecretValue != null) Arrays.fill(encryptionKeySecretValue, '\u0000');
@@ -122,4 +125,12 @@ public class RawdataClientContentStoreInitializer implements ContentStoreInitial
             }
         }
     }
+
+    private static RawdataClientContentStore replayWriteAheadLog(RawdataClientContentStore contentStore) {
+        int replayedEntries = contentStore.replayWriteAheadLog();
+        if (replayedEntries > 0) {
+            LOG.info("Replayed {} buffered entries from the write-ahead log", replayedEntries);
+        }
+        return contentStore;
+    }
 }
@@ -7,19 +7,46 @@ import io.descoped.dc.api.content.ContentStreamConsumer;
 import io.descoped.dc.api.content.ContentStreamCursor;
 import io.descoped.dc.api.content.ContentStreamProducer;
 import io.descoped.rawdata.api.RawdataClient;
+import io.descoped.rawdata.api.RawdataCursor;
 import io.descoped.rawdata.api.RawdataMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
 public class RawdataClientContentStream implements ContentStream {
 
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientContentStream.class);
+
     private final RawdataClient client;
     private final Function<byte[], byte[]> tryEncryptContent;
-    private final Map<String, ContentStreamProducer> producerMap = new ConcurrentHashMap<>();
-    private final Map<String, ContentStreamConsumer> consumerMap = new ConcurrentHashMap<>();
+    private final Function<byte[], byte[]> consumerDecryptContent;
+    private final RawdataClientContentStreamConfiguration configuration;
+    private final ExecutorService publishExecutor;
+    private final ScheduledExecutorService lingerScheduler;
+    private final ExecutorService batchExecutor;
+    private final RawdataClientBufferPool bufferPool;
+    private final RawdataClientGroupCommit groupCommit;
+    private final RawdataClientLatencyMetrics latencyMetrics = new RawdataClientLatencyMetrics();
+    private final RawdataClientContentStreamProducer.Collaborators producerCollaborators;
+    private final Map<String, RawdataClientContentStreamProducer> producerMap = new ConcurrentHashMap<>();
+    private final Map<ConsumerKey, RawdataClientContentStreamConsumer> consumerMap = new ConcurrentHashMap<>();
+    // last published position per topic, seeded from the backend and updated when the producers of this stream publish
+    private final Map<String, Optional<String>> lastPositions = new ConcurrentHashMap<>();
+    private final Set<RawdataClientContentStreamPublisher.Subscription> flowSubscriptions = ConcurrentHashMap.newKeySet();
+    private ExecutorService flowExecutor;
+    private ScheduledExecutorService flowPollScheduler;
     private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public RawdataClientContentStream(RawdataClient client) {
@@ -27,17 +54,109 @@ public class RawdataClientContentStream implements ContentStream {
     }
 
     public RawdataClientContentStream(RawdataClient client, Function<byte[], byte[]> tryEncryptContent) {
+        this(client, tryEncryptContent, RawdataClientContentStreamConfiguration.defaults());
+    }
+
+    public RawdataClientContentStream(RawdataClient client, Function<byte[], byte[]> tryEncryptContent, RawdataClientContentStreamConfiguration configuration) {
+        this(client, tryEncryptContent, null, configuration);
+    }
+
+    /**
+     * @param tryDecryptContent function that decrypts consumed content when {@code rawdata.consumer.decrypt} is enabled, or null
+     */
+    RawdataClientContentStream(RawdataClient client, Function<byte[], byte[]> tryEncryptContent, Function<byte[], byte[]> tryDecryptContent,
+                               RawdataClientContentStreamConfiguration configuration) {
         this.client = client;
         this.tryEncryptContent = tryEncryptContent;
+        this.consumerDecryptContent = configuration.isConsumerDecrypt() ? tryDecryptContent : null;
+        this.configuration = configuration;
+        this.publishExecutor = configuration.isAsyncPublish() ? RawdataClientExecutors.newExecutor("platform", configuration.asyncPublishThreads(), "rawdata-publish-") : null;
+        this.lingerScheduler = configuration.isBatchPublish() ? Executors.newSingleThreadScheduledExecutor(RawdataClientExecutors.daemonThreadFactory("rawdata-publish-linger-")) : null;
+        // batches are written off the linger scheduler, so that a slow topic does not delay the flushes of other topics
+        this.batchExecutor = configuration.isBatchPublish() && publishExecutor == null && !configuration.isGroupCommit() ?
+                RawdataClientExecutors.newExecutor("platform", configuration.asyncPublishThreads(), "rawdata-publish-batch-") : null;
+        this.bufferPool = newBufferPool(configuration);
+        this.groupCommit = configuration.isGroupCommit() ? new RawdataClientGroupCommit(configuration.groupCommitWindowMillis(), configuration.groupCommitMaxMessages(),
+                Executors.newSingleThreadScheduledExecutor(RawdataClientExecutors.daemonThreadFactory("rawdata-group-commit-window-")),
+                RawdataClientExecutors.newExecutor(configuration.groupCommitExecutor(), configuration.groupCommitThreads(), "rawdata-group-commit-")) : null;
+        this.producerCollaborators = new RawdataClientContentStreamProducer.Collaborators(publishExecutor, lingerScheduler, batchExecutor, bufferPool, latencyMetrics, groupCommit,
+                this::publishedPosition, newRecycler(configuration));
+    }
+
+    private static RawdataClientContentStreamProducer.Recycler newRecycler(RawdataClientContentStreamConfiguration configuration) {
+        if (!configuration.isBufferRecycle()) {
+            return null;
+        }
+        if (configuration.isConcurrentBuffer()) {
+            // a thread that buffers concurrently may still hold a builder after its position was published and recycled
+            LOG.warn("Builders are not recycled with concurrent buffering. Fallback to new builders");
+            return null;
+        }
+        return new RawdataClientContentStreamProducer.Recycler();
     }
 
+    private static RawdataClientBufferPool newBufferPool(RawdataClientContentStreamConfiguration configuration) {
+        if (!configuration.isDirectBufferPool()) {
+            return null;
+        }
+        if (configuration.isBufferSpill() || "parallel".equals(configuration.encryptionStage())) {
+            // spilling and deferred encryption copy pooled content back to heap, and then into the pool again
+            LOG.warn("The direct buffer pool is not used with buffer spill or the parallel encryption stage. Fallback to heap buffers");
+            return null;
+        }
+        return new RawdataClientBufferPool(configuration.bufferPoolChunkSize(), configuration.bufferPoolMaxBytes());
+    }
+
+    /**
+     * @return the pool that holds buffered content off-heap, or null when content is buffered on heap
+     */
+    public RawdataClientBufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return the pool of builders that is shared by the producers, or null when builders are not recycled
+     */
+    RawdataClientContentStreamProducer.Recycler recycler() {
+        return producerCollaborators.recycler;
+    }
+
+    public RawdataClientLatencyMetrics latencyMetrics() {
+        return latencyMetrics;
+    }
+
+    /**
+     * @return the coordinator that commits the writes of all topics together, or null when topics are written independently
+     */
+    public RawdataClientGroupCommit groupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Returns the last position of a topic. While this content stream has a producer of the topic, the backend is read
+     * once and the position is then kept up to date by the producer. Without a producer, the position is read from the
+     * backend on every call, so that positions published by other writers are seen.
+     */
     @Override
     public String lastPosition(String topic) {
         if (isClosed()) {
             throw new ClosedContentStreamException();
         }
-        RawdataMessage message = client.lastMessage(topic);
-        return message != null ? message.position() : null;
+        if (!producerMap.containsKey(topic)) {
+            RawdataMessage message = client.lastMessage(topic);
+            return message != null ? message.position() : null;
+        }
+        Optional<String> lastPosition = lastPositions.get(topic);
+        if (lastPosition == null) {
+            RawdataMessage message = client.lastMessage(topic);
+            // a position that was published while the backend was read takes precedence
+            lastPosition = Optional.ofNullable(message != null ? message.position() : null);
+            Optional<String> publishedPosition = lastPositions.putIfAbsent(topic, lastPosition);
+            if (publishedPosition != null) {
+                lastPosition = publishedPosition;
+            }
+        }
+        return lastPosition.orElse(null);
     }
 
     @Override
@@ -46,53 +165,189 @@ public class RawdataClientContentStream implements ContentStream {
             throw new ClosedContentStreamException();
         }
         RawdataMessage message = client.lastMessage(topic);
-        return message != null ? RawdataClientContentStreamBuffer.of(message) : null;
+        if (message != null && producerMap.containsKey(topic)) {
+            lastPositions.putIfAbsent(topic, Optional.of(message.position()));
+        }
+        return message != null ? RawdataClientContentStreamBuffer.of(message, consumerDecryptContent) : null;
+    }
+
+    private void publishedPosition(String topic, String position) {
+        lastPositions.put(topic, Optional.of(position));
     }
 
     @Override
-    public ContentStreamProducer producer(String topic) {
+    public RawdataClientContentStreamProducer producer(String topic) {
         if (isClosed()) {
             throw new ClosedContentStreamException();
         }
-        return producerMap.computeIfAbsent(topic, p -> new RawdataClientContentStreamProducer(client.producer(topic), this::closeAndRemoveProducer, tryEncryptContent));
+        return producerMap.computeIfAbsent(topic, p -> {
+            // a position cached while the topic had no producer may be stale
+            lastPositions.remove(topic);
+            latencyMetrics.openTopic(topic);
+            return new RawdataClientContentStreamProducer(client.producer(topic), this::closeAndRemoveProducer, tryEncryptContent, configuration, producerCollaborators);
+        });
     }
 
     @Override
-    public ContentStreamConsumer consumer(String topic, ContentStreamCursor cursor) {
+    public RawdataClientContentStreamConsumer consumer(String topic) {
+        return consumer(topic, null);
+    }
+
+    /**
+     * Returns the consumer of a topic that starts at the given cursor. Consumers are cached per topic and cursor, so
+     * readers that open a topic at different cursors scan it independently.
+     *
+     * @param cursor a {@link RawdataClientContentStreamCursor}, or null to start at the beginning of the topic
+     */
+    @Override
+    public RawdataClientContentStreamConsumer consumer(String topic, ContentStreamCursor cursor) {
+        if (isClosed()) {
+            throw new ClosedContentStreamException();
+        }
+        RawdataClientContentStreamCursor contentStreamCursor = toContentStreamCursor(cursor);
+        ConsumerKey consumerKey = new ConsumerKey(topic, contentStreamCursor);
+        RawdataClientContentStreamConsumer consumer = consumerMap.get(consumerKey);
+        if (consumer != null) {
+            return consumer;
+        }
+        // the cursor is resolved against the backend outside the map, and a consumer that loses a race is closed
+        RawdataClientContentStreamConsumer newConsumer = new RawdataClientContentStreamConsumer(client.consumer(topic, toRawdataCursor(topic, contentStreamCursor)),
+                contentStreamCursor, this::removeConsumer, configuration.consumerPrefetchSize(), consumerDecryptContent);
+        consumer = consumerMap.putIfAbsent(consumerKey, newConsumer);
+        if (consumer == null) {
+            return newConsumer;
+        }
+        closeConsumer(newConsumer);
+        return consumer;
+    }
+
+    public RawdataClientContentStreamPublisher publisher(String topic) {
+        return publisher(topic, null);
+    }
+
+    /**
+     * Returns a {@link Flow.Publisher} of a topic that starts at the given cursor. Each publisher reads the topic with
+     * its own consumer, which is not shared with {@link #consumer(String, ContentStreamCursor)}. Subscribers are
+     * completed when the content stream is closed.
+     */
+    public RawdataClientContentStreamPublisher publisher(String topic, ContentStreamCursor cursor) {
+        if (isClosed()) {
+            throw new ClosedContentStreamException();
+        }
+        RawdataClientContentStreamCursor contentStreamCursor = toContentStreamCursor(cursor);
+        return new RawdataClientContentStreamPublisher(() -> newConsumer(topic, contentStreamCursor, 0),
+                flowExecutor(), flowPollScheduler(), configuration.flowBatchSize(), configuration.flowPollIntervalMillis(), flowSubscriptions);
+    }
+
+    /**
+     * Returns a replay of a topic of this content stream, which copies or replays it in parallel partitions.
+     */
+    public RawdataClientTopicReplay.Builder replay(String topic) {
+        if (isClosed()) {
+            throw new ClosedContentStreamException();
+        }
+        return RawdataClientTopicReplay.builder(this, topic);
+    }
+
+    /**
+     * Creates a consumer that is not shared with {@link #consumer(String, ContentStreamCursor)}, and that the
+     * caller must close.
+     */
+    RawdataClientContentStreamConsumer newConsumer(String topic, RawdataClientContentStreamCursor cursor, int prefetchSize) {
         if (isClosed()) {
             throw new ClosedContentStreamException();
         }
-        return consumerMap.computeIfAbsent(topic, c -> new RawdataClientContentStreamConsumer(client.consumer(topic), this::closeAndRemoveConsumer));
+        return new RawdataClientContentStreamConsumer(client.consumer(topic, toRawdataCursor(topic, cursor)), cursor, c -> {
+        }, prefetchSize, consumerDecryptContent);
     }
 
+    /**
+     * Creates a producer that is not shared with {@link #producer(String)}, and that the caller must close.
+     */
+    RawdataClientContentStreamProducer newProducer(String topic) {
+        if (isClosed()) {
+            throw new ClosedContentStreamException();
+        }
+        latencyMetrics.openTopic(topic);
+        return new RawdataClientContentStreamProducer(client.producer(topic), t -> {
+        }, tryEncryptContent, configuration, producerCollaborators);
+    }
+
+    RawdataClientContentStreamConfiguration configuration() {
+        return configuration;
+    }
+
+    private synchronized ExecutorService flowExecutor() {
+        if (flowExecutor == null) {
+            flowExecutor = RawdataClientExecutors.newExecutor(configuration.flowExecutor(), configuration.flowThreads(), "rawdata-flow-");
+        }
+        return flowExecutor;
+    }
+
+    private synchronized ScheduledExecutorService flowPollScheduler() {
+        if (flowPollScheduler == null) {
+            flowPollScheduler = Executors.newSingleThreadScheduledExecutor(RawdataClientExecutors.daemonThreadFactory("rawdata-flow-poll-"));
+        }
+        return flowPollScheduler;
+    }
+
+    private static RawdataClientContentStreamCursor toContentStreamCursor(ContentStreamCursor cursor) {
+        if (cursor != null && !(cursor instanceof RawdataClientContentStreamCursor)) {
+            throw new IllegalArgumentException("Unsupported cursor type: " + cursor.getClass().getName());
+        }
+        return (RawdataClientContentStreamCursor) cursor;
+    }
+
+    private RawdataCursor toRawdataCursor(String topic, RawdataClientContentStreamCursor cursor) {
+        return cursor != null ? cursor.toRawdataCursor(client, topic) : null;
+    }
+
+    /**
+     * Closes and removes the producer of a topic, and invalidates the cached last position of the topic.
+     */
     @Override
     public void closeAndRemoveProducer(String topic) {
         ContentStreamProducer producer = producerMap.remove(topic);
-        if (producer != null) {
-            try {
+        try {
+            if (producer != null) {
                 producer.close();
-            } catch (RuntimeException | Error e) {
-                throw e;
-            } catch (Exception e) {
-                throw new RuntimeException(e);
             }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            lastPositions.remove(topic);
         }
     }
 
+    /**
+     * Closes and removes all consumers of a topic, regardless of cursor.
+     */
     @Override
     public void closeAndRemoveConsumer(String topic) {
-        ContentStreamConsumer consumer = consumerMap.remove(topic);
-        if (consumer != null) {
-            try {
-                consumer.close();
-            } catch (RuntimeException | Error e) {
-                throw e;
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        for (Map.Entry<ConsumerKey, RawdataClientContentStreamConsumer> entry : consumerMap.entrySet()) {
+            if (!entry.getKey().topic.equals(topic) || !consumerMap.remove(entry.getKey(), entry.getValue())) {
+                continue;
             }
+            closeConsumer(entry.getValue());
+        }
+    }
+
+    private static void closeConsumer(RawdataClientContentStreamConsumer consumer) {
+        try {
+            consumer.close();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
     }
 
+    private void removeConsumer(RawdataClientContentStreamConsumer consumer) {
+        consumerMap.remove(new ConsumerKey(consumer.topic(), consumer.cursor()), consumer);
+    }
+
     public boolean isClosed() {
         return closed.get();
     }
@@ -108,7 +363,56 @@ public class RawdataClientContentStream implements ContentStream {
             }
             producerMap.clear();
             consumerMap.clear();
+            for (RawdataClientContentStreamPublisher.Subscription subscription : flowSubscriptions) {
+                subscription.complete();
+            }
+            synchronized (this) {
+                if (flowPollScheduler != null) {
+                    flowPollScheduler.shutdownNow();
+                }
+                if (flowExecutor != null) {
+                    flowExecutor.shutdown();
+                    flowExecutor.awaitTermination(30, TimeUnit.SECONDS);
+                }
+            }
+            if (lingerScheduler != null) {
+                lingerScheduler.shutdownNow();
+            }
+            if (groupCommit != null) {
+                groupCommit.close();
+            }
+            if (publishExecutor != null) {
+                publishExecutor.shutdown();
+                publishExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            }
+            if (batchExecutor != null) {
+                batchExecutor.shutdown();
+                batchExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            }
             client.close();
         }
     }
+
+    static class ConsumerKey {
+        final String topic;
+        final RawdataClientContentStreamCursor cursor;
+
+        ConsumerKey(String topic, RawdataClientContentStreamCursor cursor) {
+            this.topic = topic;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ConsumerKey that = (ConsumerKey) o;
+            return topic.equals(that.topic) && Objects.equals(cursor, that.cursor);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(topic, cursor);
+        }
+    }
 }
@@ -6,13 +6,23 @@ import io.descoped.dc.api.content.MetadataContent;
 import io.descoped.rawdata.api.RawdataMessage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
 
 public class RawdataClientContentStreamBuffer implements ContentStreamBuffer {
 
+    static final String MANIFEST_KEY = "manifest.json";
+    static final String CONTENT_KEY = "content-key";
+    static final String CONTENT_ENCODING = "content-encoding";
+    static final String CONTENT_CHUNKS = "content-chunks";
+
     private final ULID.Value ulid;
     private final String position;
     private final Map<String, byte[]> data;
@@ -26,10 +36,25 @@ public class RawdataClientContentStreamBuffer implements ContentStreamBuffer {
     }
 
     public static ContentStreamBuffer of(RawdataMessage message) {
+        return of(message, null);
+    }
+
+    /**
+     * @param tryDecryptContent function that decrypts entries and the manifest, or null to read them as stored
+     * @return a buffer that decodes the message content on demand
+     */
+    public static ContentStreamBuffer of(RawdataMessage message, Function<byte[], byte[]> tryDecryptContent) {
         if (message == null) {
             return null;
         }
-        return new RawdataClientContentStreamBuffer(message.ulid(), message.position(), message.data(), new ArrayList<>());
+        return new RawdataClientMessageBuffer(message, tryDecryptContent);
+    }
+
+    /**
+     * @return the content key of a chunk of a streamed document, which sorts in chunk order
+     */
+    static String chunkKey(String contentKey, int chunk) {
+        return String.format("%s.chunk-%06d", contentKey, chunk);
     }
 
     @Override
@@ -66,9 +91,24 @@ public class RawdataClientContentStreamBuffer implements ContentStreamBuffer {
 
         private ULID.Value ulid;
         private String position;
-        final Map<String, byte[]> data = new LinkedHashMap<>();
+        final Map<String, byte[]> data;
         private List<MetadataContent> manifestList = new ArrayList<>();
 
+        public Builder() {
+            this(new LinkedHashMap<>());
+        }
+
+        /**
+         * @param data map of buffered content, or null for a subclass that keeps buffered content elsewhere
+         */
+        Builder(Map<String, byte[]> data) {
+            this.data = data;
+        }
+
+        ULID.Value ulid() {
+            return ulid;
+        }
+
         @Override
         public ContentStreamBuffer.Builder ulid(ULID.Value ulid) {
             this.ulid = ulid;
@@ -94,7 +134,7 @@ public class RawdataClientContentStreamBuffer implements ContentStreamBuffer {
 
         @Override
         public Builder buffer(String contentKey, byte[] content, MetadataContent manifest) {
-            data.put(contentKey, content);
+            put(contentKey, content);
             // do not add manifest entry
             if (manifest != null) {
                 manifestList.add(manifest);
@@ -122,5 +162,341 @@ public class RawdataClientContentStreamBuffer implements ContentStreamBuffer {
             return new RawdataClientContentStreamBuffer(ulid, position, data, manifestList);
         }
 
+        /**
+         * Releases resources held by buffered content. The builder must not be used after it has been released.
+         */
+        public void release() {
+        }
+
+        /**
+         * Removes and returns all buffered content in buffer order. The manifest is kept.
+         */
+        Map<String, byte[]> drainContent() {
+            Map<String, byte[]> content = new LinkedHashMap<>(data);
+            data.clear();
+            return content;
+        }
+
+        /**
+         * @return a copy of all buffered content in buffer order
+         */
+        Map<String, byte[]> copyContent() {
+            return new LinkedHashMap<>(data);
+        }
+
+        /**
+         * Removes content that was returned by {@link #copyContent()}, except content keys that have been buffered with
+         * other content since. The manifest is kept.
+         */
+        void removeContent(Map<String, byte[]> content) {
+            // buffered arrays are copied by reference, so an unchanged entry holds the copied array
+            content.forEach(data::remove);
+        }
+
+        /**
+         * Releases buffered content and clears the builder, so that it can be used for another position. Buffers
+         * that were built by this builder must not be used after it has been reset.
+         */
+        void reset() {
+            release();
+            ulid = null;
+            position = null;
+            if (data != null) {
+                data.clear();
+            }
+            manifestList.clear();
+        }
+
+        /**
+         * Buffers an entry of a position.
+         *
+         * @return the size of the content that was replaced, or -1 if the content key was not buffered
+         */
+        synchronized long bufferEntry(String position, String contentKey, byte[] content, MetadataContent manifest) {
+            byte[] previous = keys().contains(contentKey) ? get(contentKey) : null;
+            position(position).buffer(contentKey, content, manifest);
+            return previous != null ? previous.length : -1;
+        }
+    }
+
+    /**
+     * A builder that many threads can buffer the entries of one position to, without holding a lock. Entries and
+     * manifest entries are ordered by content key, so the order of a built buffer does not depend on the order in
+     * which the threads buffered their entries. Content keys are compared as strings, so {@code entry-10} is ordered
+     * before {@code entry-9}, and keys must be zero-padded to keep page order. Buffering a content key again replaces
+     * both its content and its manifest entry.
+     * <p>
+     * With a buffer pool, content is kept in pooled direct memory like {@link PooledBuilder}.
+     */
+    public static class ConcurrentBuilder extends Builder {
+
+        private final RawdataClientBufferPool pool;
+        private final int minPooledSize;
+        private final ConcurrentNavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+        private volatile ULID.Value ulid;
+        private volatile String position;
+
+        public ConcurrentBuilder() {
+            this(null);
+        }
+
+        /**
+         * @param pool pool that holds buffered content off-heap, or null to buffer content on heap
+         */
+        public ConcurrentBuilder(RawdataClientBufferPool pool) {
+            super(null);
+            this.pool = pool;
+            this.minPooledSize = pool != null ? pool.chunkSize() / 16 : Integer.MAX_VALUE;
+        }
+
+        @Override
+        ULID.Value ulid() {
+            return ulid;
+        }
+
+        @Override
+        public ContentStreamBuffer.Builder ulid(ULID.Value ulid) {
+            this.ulid = ulid;
+            return this;
+        }
+
+        @Override
+        public ContentStreamBuffer.Builder position(String position) {
+            this.position = position;
+            return this;
+        }
+
+        @Override
+        public String position() {
+            return position;
+        }
+
+        @Override
+        public ContentStreamBuffer.Builder put(String key, byte[] payload) {
+            bufferEntry(key, payload, null, false);
+            return this;
+        }
+
+        @Override
+        public Builder buffer(String contentKey, byte[] content, MetadataContent manifest) {
+            bufferEntry(contentKey, content, manifest, manifest != null);
+            return this;
+        }
+
+        @Override
+        long bufferEntry(String position, String contentKey, byte[] content, MetadataContent manifest) {
+            this.position = position;
+            Entry previous = bufferEntry(contentKey, content, manifest, manifest != null);
+            return previous != null && previous.content != null ? previous.content.length() : -1;
+        }
+
+        private Entry bufferEntry(String contentKey, byte[] content, MetadataContent manifest, boolean replaceManifest) {
+            RawdataClientBufferPool.PooledBytes pooledBytes = content.length >= minPooledSize ? pool.allocate(content) : null;
+            Entry entry = new Entry(pooledBytes != null ? pooledBytes : RawdataClientBufferPool.PooledBytes.heap(content), manifest);
+            Entry[] previous = new Entry[1];
+            // the function may be applied more than once, and the last application is the one that took effect
+            entries.compute(contentKey, (key, current) -> {
+                previous[0] = current;
+                return replaceManifest || current == null ? entry : new Entry(entry.content, current.manifest);
+            });
+            if (previous[0] != null && previous[0].content != null) {
+                previous[0].content.release();
+            }
+            return previous[0];
+        }
+
+        @Override
+        public byte[] get(String contentKey) {
+            Entry entry = entries.get(contentKey);
+            return entry == null || entry.content == null ? null : entry.content.toByteArray();
+        }
+
+        /**
+         * @return a snapshot of the buffered content keys in content key order
+         */
+        @Override
+        public Set<String> keys() {
+            Set<String> keys = new LinkedHashSet<>();
+            entries.forEach((contentKey, entry) -> {
+                if (entry.content != null) {
+                    keys.add(contentKey);
+                }
+            });
+            return keys;
+        }
+
+        /**
+         * @return a snapshot of the manifest entries in content key order
+         */
+        @Override
+        public List<MetadataContent> manifest() {
+            List<MetadataContent> manifest = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                if (entry.manifest != null) {
+                    manifest.add(entry.manifest);
+                }
+            }
+            return manifest;
+        }
+
+        @Override
+        public ContentStreamBuffer build() {
+            Map<String, byte[]> content = new LinkedHashMap<>();
+            entries.forEach((contentKey, entry) -> {
+                if (entry.content != null) {
+                    content.put(contentKey, entry.content.toByteArray());
+                }
+            });
+            return new RawdataClientContentStreamBuffer(ulid, position, content, manifest());
+        }
+
+        @Override
+        public void release() {
+            for (Entry entry : entries.values()) {
+                if (entry.content != null) {
+                    entry.content.release();
+                }
+            }
+            entries.clear();
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            ulid = null;
+            position = null;
+        }
+
+        @Override
+        Map<String, byte[]> drainContent() {
+            Map<String, byte[]> content = new LinkedHashMap<>();
+            for (String contentKey : entries.keySet()) {
+                Entry[] drained = new Entry[1];
+                entries.computeIfPresent(contentKey, (key, current) -> {
+                    drained[0] = current;
+                    return current.content == null ? current : new Entry(null, current.manifest);
+                });
+                if (drained[0] != null && drained[0].content != null) {
+                    content.put(contentKey, drained[0].content.toByteArray());
+                    drained[0].content.release();
+                }
+            }
+            return content;
+        }
+
+        @Override
+        Map<String, byte[]> copyContent() {
+            Map<String, byte[]> content = new LinkedHashMap<>();
+            entries.forEach((contentKey, entry) -> {
+                if (entry.content != null) {
+                    content.put(contentKey, entry.content.toByteArray());
+                }
+            });
+            return content;
+        }
+
+        @Override
+        void removeContent(Map<String, byte[]> content) {
+            content.forEach((contentKey, copiedContent) -> {
+                Entry[] removed = new Entry[1];
+                // the function may be applied more than once, and the last application is the one that took effect
+                entries.computeIfPresent(contentKey, (key, current) -> {
+                    boolean unchanged = current.content != null && Arrays.equals(current.content.toByteArray(), copiedContent);
+                    removed[0] = unchanged ? current : null;
+                    return unchanged ? new Entry(null, current.manifest) : current;
+                });
+                if (removed[0] != null) {
+                    removed[0].content.release();
+                }
+            });
+        }
+
+        static class Entry {
+            final RawdataClientBufferPool.PooledBytes content; // null when the content has been drained
+            final MetadataContent manifest;
+
+            Entry(RawdataClientBufferPool.PooledBytes content, MetadataContent manifest) {
+                this.content = content;
+                this.manifest = manifest;
+            }
+        }
+    }
+
+    /**
+     * A builder that keeps buffered content in pooled direct memory chunks instead of on heap, and returns the
+     * chunks to the pool when it is released. Content is copied to heap arrays when the buffer is built.
+     */
+    public static class PooledBuilder extends Builder {
+
+        private final RawdataClientBufferPool pool;
+        private final int minPooledSize;
+        private final Map<String, RawdataClientBufferPool.PooledBytes> pooledData = new LinkedHashMap<>();
+
+        public PooledBuilder(RawdataClientBufferPool pool) {
+            super(null);
+            this.pool = pool;
+            // smaller content would waste most of a chunk
+            this.minPooledSize = pool.chunkSize() / 16;
+        }
+
+        @Override
+        public ContentStreamBuffer.Builder put(String key, byte[] payload) {
+            RawdataClientBufferPool.PooledBytes pooledBytes = payload.length >= minPooledSize ? pool.allocate(payload) : null;
+            RawdataClientBufferPool.PooledBytes previous = pooledData.put(key, pooledBytes != null ? pooledBytes : RawdataClientBufferPool.PooledBytes.heap(payload));
+            if (previous != null) {
+                previous.release();
+            }
+            return this;
+        }
+
+        @Override
+        public byte[] get(String contentKey) {
+            RawdataClientBufferPool.PooledBytes pooledBytes = pooledData.get(contentKey);
+            return pooledBytes == null ? null : pooledBytes.toByteArray();
+        }
+
+        @Override
+        public Set<String> keys() {
+            return pooledData.keySet();
+        }
+
+        @Override
+        public ContentStreamBuffer build() {
+            Map<String, byte[]> content = new LinkedHashMap<>();
+            pooledData.forEach((key, pooledBytes) -> content.put(key, pooledBytes.toByteArray()));
+            return new RawdataClientContentStreamBuffer(ulid(), position(), content, manifest());
+        }
+
+        @Override
+        public void release() {
+            pooledData.values().forEach(RawdataClientBufferPool.PooledBytes::release);
+            pooledData.clear();
+        }
+
+        @Override
+        Map<String, byte[]> drainContent() {
+            Map<String, byte[]> content = new LinkedHashMap<>();
+            pooledData.forEach((key, pooledBytes) -> content.put(key, pooledBytes.toByteArray()));
+            release();
+            return content;
+        }
+
+        @Override
+        Map<String, byte[]> copyContent() {
+            Map<String, byte[]> content = new LinkedHashMap<>();
+            pooledData.forEach((key, pooledBytes) -> content.put(key, pooledBytes.toByteArray()));
+            return content;
+        }
+
+        @Override
+        void removeContent(Map<String, byte[]> content) {
+            content.forEach((contentKey, copiedContent) -> {
+                RawdataClientBufferPool.PooledBytes pooledBytes = pooledData.get(contentKey);
+                if (pooledBytes != null && Arrays.equals(pooledBytes.toByteArray(), copiedContent)) {
+                    pooledData.remove(contentKey);
+                    pooledBytes.release();
+                }
+            });
+        }
     }
 }
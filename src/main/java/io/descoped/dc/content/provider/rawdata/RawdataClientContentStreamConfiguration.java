@@ -0,0 +1,339 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class RawdataClientContentStreamConfiguration {
+
+    private final Map<String, String> configuration;
+
+    RawdataClientContentStreamConfiguration(Map<String, String> configuration) {
+        this.configuration = configuration;
+    }
+
+    public static RawdataClientContentStreamConfiguration of(Map<String, String> configuration) {
+        return new RawdataClientContentStreamConfiguration(configuration == null ? Map.of() : Map.copyOf(configuration));
+    }
+
+    public static RawdataClientContentStreamConfiguration defaults() {
+        return of(Map.of());
+    }
+
+    /*
+     * rawdata.publish.async = (true | false)
+     * rawdata.publish.async.max-in-flight = number of publish batches in flight per topic
+     * rawdata.publish.async.threads = number of threads that write publish batches, shared by all topics
+     */
+
+    public boolean isAsyncPublish() {
+        return getBoolean("rawdata.publish.async", false);
+    }
+
+    public int maxInFlightPublishes() {
+        return getInt("rawdata.publish.async.max-in-flight", 4);
+    }
+
+    public int asyncPublishThreads() {
+        return getInt("rawdata.publish.async.threads", 4);
+    }
+
+    /*
+     * rawdata.publish.batch = (true | false)
+     * rawdata.publish.batch.max-messages = flush when the pending batch holds this many messages
+     * rawdata.publish.batch.max-bytes = flush when the pending batch holds this many payload bytes
+     * rawdata.publish.batch.linger-ms = flush when the oldest message in the pending batch is this old
+     */
+
+    public boolean isBatchPublish() {
+        return getBoolean("rawdata.publish.batch", false);
+    }
+
+    public int batchMaxMessages() {
+        return getInt("rawdata.publish.batch.max-messages", 500);
+    }
+
+    public long batchMaxBytes() {
+        return getLong("rawdata.publish.batch.max-bytes", 4 * 1024 * 1024);
+    }
+
+    public long batchLingerMillis() {
+        return getLong("rawdata.publish.batch.linger-ms", 100);
+    }
+
+    /*
+     * rawdata.publish.group-commit = (true | false) commit the writes of all topics together
+     * rawdata.publish.group-commit.window-ms = commit a group when its first write is this old
+     * rawdata.publish.group-commit.max-messages = commit a group when it holds this many messages
+     * rawdata.publish.group-commit.executor = (platform | virtual) threads that perform the writes of a group
+     * rawdata.publish.group-commit.threads = number of platform threads
+     */
+
+    public boolean isGroupCommit() {
+        return getBoolean("rawdata.publish.group-commit", false);
+    }
+
+    public long groupCommitWindowMillis() {
+        return getLong("rawdata.publish.group-commit.window-ms", 5);
+    }
+
+    public int groupCommitMaxMessages() {
+        return getInt("rawdata.publish.group-commit.max-messages", 1000);
+    }
+
+    public String groupCommitExecutor() {
+        return getString("rawdata.publish.group-commit.executor", "platform");
+    }
+
+    public int groupCommitThreads() {
+        return getInt("rawdata.publish.group-commit.threads", 4);
+    }
+
+    public String encryptionStage() {
+        return getString("rawdata.encryption.stage", "inline");
+    }
+
+    public String encryptionStageExecutor() {
+        return getString("rawdata.encryption.stage.executor", "platform");
+    }
+
+    public int encryptionStageThreads() {
+        return getInt("rawdata.encryption.stage.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /*
+     * rawdata.encryption.key.retention-seconds = how long a derived key is cached after the last store using it is closed, where 0 zeroes it on close
+     */
+
+    public long encryptionKeyRetentionMillis() {
+        return getLong("rawdata.encryption.key.retention-seconds", 0) * 1000;
+    }
+
+    /*
+     * rawdata.compression = (none | deflate | gzip)
+     * rawdata.compression.min-size = documents smaller than this number of bytes are stored uncompressed
+     * rawdata.compression.level = (-1 | 0..9) where -1 is the codec default
+     */
+
+    public String compressionCodec() {
+        return getString("rawdata.compression", "none");
+    }
+
+    public int compressionMinSize() {
+        return getInt("rawdata.compression.min-size", 1024);
+    }
+
+    public int compressionLevel() {
+        return getInt("rawdata.compression.level", -1);
+    }
+
+    /*
+     * rawdata.manifest.format = (array | compact) where compact writes fields that are equal for all entries of a position once
+     * rawdata.manifest.intern-size = number of distinct header, correlation id and state nodes shared between manifest entries, where 0 disables interning
+     */
+
+    public boolean isCompactManifest() {
+        String manifestFormat = getString("rawdata.manifest.format", "array");
+        if (!"array".equals(manifestFormat) && !"compact".equals(manifestFormat)) {
+            throw new IllegalArgumentException("Unknown manifest format: " + manifestFormat);
+        }
+        return "compact".equals(manifestFormat);
+    }
+
+    public int manifestInternSize() {
+        return getInt("rawdata.manifest.intern-size", 0);
+    }
+
+    /*
+     * rawdata.buffer.pool = (heap | direct)
+     * rawdata.buffer.pool.max-bytes = direct memory budget for buffered content
+     * rawdata.buffer.pool.chunk-size = size of pooled direct buffer chunks
+     */
+
+    public boolean isDirectBufferPool() {
+        String bufferPool = getString("rawdata.buffer.pool", "heap");
+        if (!"heap".equals(bufferPool) && !"direct".equals(bufferPool)) {
+            throw new IllegalArgumentException("Unknown buffer pool: " + bufferPool);
+        }
+        return "direct".equals(bufferPool);
+    }
+
+    public long bufferPoolMaxBytes() {
+        return getLong("rawdata.buffer.pool.max-bytes", 256L * 1024 * 1024);
+    }
+
+    public int bufferPoolChunkSize() {
+        return getInt("rawdata.buffer.pool.chunk-size", 64 * 1024);
+    }
+
+    /*
+     * rawdata.stream.chunk-size = size of the chunks a streamed document is stored in
+     */
+
+    public int streamChunkSize() {
+        return getInt("rawdata.stream.chunk-size", 4 * 1024 * 1024);
+    }
+
+    /*
+     * rawdata.buffer.recycle = (true | false) reuse builders from a pool per content stream and publish arrays per thread, unless rawdata.buffer.concurrent is enabled
+     */
+
+    public boolean isBufferRecycle() {
+        return getBoolean("rawdata.buffer.recycle", false);
+    }
+
+    /*
+     * rawdata.buffer.concurrent = (true | false) buffer the entries of a position from many threads without a lock, in lexicographic content key order
+     */
+
+    public boolean isConcurrentBuffer() {
+        return getBoolean("rawdata.buffer.concurrent", false);
+    }
+
+    /*
+     * rawdata.buffer.spill.max-memory-bytes = memory ceiling for unpublished content, where 0 disables spilling
+     * rawdata.buffer.spill.directory = directory of spill files (default: java.io.tmpdir)
+     */
+
+    public boolean isBufferSpill() {
+        return bufferSpillMaxMemoryBytes() > 0;
+    }
+
+    public long bufferSpillMaxMemoryBytes() {
+        return getLong("rawdata.buffer.spill.max-memory-bytes", 0);
+    }
+
+    public String bufferSpillDirectory() {
+        return getString("rawdata.buffer.spill.directory", System.getProperty("java.io.tmpdir"));
+    }
+
+    /*
+     * rawdata.wal.directory = directory of write-ahead log segments, where unset disables the log
+     * rawdata.wal.segment-size = initial size of a mapped segment, which grows as needed
+     * rawdata.wal.sync = (true | false) force each append to the storage device
+     */
+
+    public boolean isWriteAheadLog() {
+        return writeAheadLogDirectory() != null;
+    }
+
+    public String writeAheadLogDirectory() {
+        return getString("rawdata.wal.directory", null);
+    }
+
+    public int writeAheadLogSegmentSize() {
+        return getInt("rawdata.wal.segment-size", 16 * 1024 * 1024);
+    }
+
+    public boolean isWriteAheadLogSync() {
+        return getBoolean("rawdata.wal.sync", false);
+    }
+
+    /*
+     * rawdata.dedup = (true | false) skip entries whose content equals the last published content of the same content key
+     * rawdata.dedup.topics = comma separated topics to deduplicate, where unset deduplicates all topics
+     * rawdata.dedup.max-entries = number of content hashes kept in memory
+     * rawdata.dedup.directory = directory of the memory-mapped index of evicted content hashes, where unset keeps hashes in memory only
+     * rawdata.dedup.spill-slots = number of content hashes in the memory-mapped index
+     */
+
+    public boolean isDedup() {
+        return getBoolean("rawdata.dedup", false);
+    }
+
+    public Set<String> dedupTopics() {
+        String topics = getString("rawdata.dedup.topics", null);
+        if (topics == null || topics.isBlank()) {
+            return Set.of();
+        }
+        Set<String> dedupTopics = new LinkedHashSet<>();
+        for (String topic : topics.split(",")) {
+            if (!topic.isBlank()) {
+                dedupTopics.add(topic.trim());
+            }
+        }
+        return dedupTopics;
+    }
+
+    public int dedupMaxEntries() {
+        return getInt("rawdata.dedup.max-entries", 100000);
+    }
+
+    public String dedupDirectory() {
+        return getString("rawdata.dedup.directory", null);
+    }
+
+    public int dedupSpillSlots() {
+        return getInt("rawdata.dedup.spill-slots", 1024 * 1024);
+    }
+
+    /*
+     * rawdata.consumer.prefetch = number of messages a consumer reads ahead on a background thread, where 0 disables prefetch
+     * rawdata.consumer.decrypt = (true | false) decrypt consumed entries and manifests with the content store key
+     */
+
+    public int consumerPrefetchSize() {
+        return getInt("rawdata.consumer.prefetch", 0);
+    }
+
+    public boolean isConsumerDecrypt() {
+        return getBoolean("rawdata.consumer.decrypt", false);
+    }
+
+    /*
+     * rawdata.flow.executor = (platform | virtual) threads that deliver messages to Flow subscribers
+     * rawdata.flow.threads = number of platform threads
+     * rawdata.flow.batch-size = maximum number of messages read per poll
+     * rawdata.flow.poll-interval-ms = delay before a topic without new messages is polled again
+     */
+
+    public String flowExecutor() {
+        return getString("rawdata.flow.executor", "platform");
+    }
+
+    public int flowThreads() {
+        return getInt("rawdata.flow.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    public int flowBatchSize() {
+        return getInt("rawdata.flow.batch-size", 256);
+    }
+
+    public long flowPollIntervalMillis() {
+        return getLong("rawdata.flow.poll-interval-ms", 100);
+    }
+
+    boolean getBoolean(String key, boolean defaultValue) {
+        String value = configuration.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    int getInt(String key, int defaultValue) {
+        String value = configuration.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer value for '" + key + "': " + value, e);
+        }
+    }
+
+    long getLong(String key, long defaultValue) {
+        String value = configuration.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid long value for '" + key + "': " + value, e);
+        }
+    }
+
+    String getString(String key, String defaultValue) {
+        String value = configuration.get(key);
+        return value == null ? defaultValue : value.trim();
+    }
+}
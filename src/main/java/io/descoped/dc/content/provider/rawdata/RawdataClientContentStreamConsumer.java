@@ -3,21 +3,57 @@ package io.descoped.dc.content.provider.rawdata;
 import io.descoped.dc.api.content.ClosedContentStreamException;
 import io.descoped.dc.api.content.ContentStreamBuffer;
 import io.descoped.dc.api.content.ContentStreamConsumer;
+import io.descoped.rawdata.api.RawdataClosedException;
 import io.descoped.rawdata.api.RawdataConsumer;
+import io.descoped.rawdata.api.RawdataMessage;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class RawdataClientContentStreamConsumer implements ContentStreamConsumer {
 
     private final RawdataConsumer consumer;
-    private final Consumer<String> closeAndRemoveConsumer;
+    private final RawdataClientContentStreamCursor cursor;
+    private final Consumer<RawdataClientContentStreamConsumer> closeAndRemoveConsumer;
+    private final Function<byte[], byte[]> tryDecryptContent;
+    private final Prefetcher prefetcher;
+    // a message that was received but did not fit the byte limit of the last batch
+    private final AtomicReference<ContentStreamBuffer> carriedOver = new AtomicReference<>();
     private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public RawdataClientContentStreamConsumer(RawdataConsumer consumer, Consumer<String> closeAndRemoveConsumer) {
+        this(consumer, null, contentStreamConsumer -> closeAndRemoveConsumer.accept(contentStreamConsumer.topic()));
+    }
+
+    public RawdataClientContentStreamConsumer(RawdataConsumer consumer, RawdataClientContentStreamCursor cursor, Consumer<RawdataClientContentStreamConsumer> closeAndRemoveConsumer) {
+        this(consumer, cursor, closeAndRemoveConsumer, 0);
+    }
+
+    /**
+     * @param prefetchSize number of messages that are read ahead on a background thread, where 0 disables prefetch
+     */
+    public RawdataClientContentStreamConsumer(RawdataConsumer consumer, RawdataClientContentStreamCursor cursor, Consumer<RawdataClientContentStreamConsumer> closeAndRemoveConsumer, int prefetchSize) {
+        this(consumer, cursor, closeAndRemoveConsumer, prefetchSize, null);
+    }
+
+    /**
+     * @param tryDecryptContent function that decrypts consumed entries and manifests on demand, or null to return them as stored
+     */
+    public RawdataClientContentStreamConsumer(RawdataConsumer consumer, RawdataClientContentStreamCursor cursor, Consumer<RawdataClientContentStreamConsumer> closeAndRemoveConsumer, int prefetchSize,
+                                              Function<byte[], byte[]> tryDecryptContent) {
         this.consumer = consumer;
+        this.cursor = cursor;
         this.closeAndRemoveConsumer = closeAndRemoveConsumer;
+        this.tryDecryptContent = tryDecryptContent;
+        this.prefetcher = prefetchSize > 0 ? new Prefetcher(prefetchSize) : null;
     }
 
     @Override
@@ -25,12 +61,68 @@ public class RawdataClientContentStreamConsumer implements ContentStreamConsumer
         return consumer.topic();
     }
 
+    /**
+     * @return the cursor this consumer was opened with, or null if it started at the beginning of the topic
+     */
+    public RawdataClientContentStreamCursor cursor() {
+        return cursor;
+    }
+
     @Override
     public ContentStreamBuffer receive(int timeout, TimeUnit unit) throws InterruptedException, ClosedContentStreamException {
         if (isClosed()) {
             throw new ClosedContentStreamException();
         }
-        return RawdataClientContentStreamBuffer.of(consumer.receive(timeout, unit));
+        ContentStreamBuffer buffer = carriedOver.getAndSet(null);
+        if (buffer != null) {
+            return buffer;
+        }
+        return nextBuffer(timeout, unit);
+    }
+
+    /**
+     * Waits up to the timeout for the first message, and then adds messages that are available without waiting
+     * until the batch holds maxMessages or maxBytes of content. The first message is always returned, even if it
+     * is larger than maxBytes.
+     *
+     * @return messages in topic order, or an empty list if no message was received before the timeout
+     */
+    public List<ContentStreamBuffer> receiveBatch(int maxMessages, long maxBytes, int timeout, TimeUnit unit) throws InterruptedException, ClosedContentStreamException {
+        List<ContentStreamBuffer> batch = new ArrayList<>(Math.min(maxMessages, 64));
+        long batchBytes = 0;
+        ContentStreamBuffer buffer = receive(timeout, unit);
+        while (buffer != null) {
+            long bytes = sizeOf(buffer);
+            if (!batch.isEmpty() && batchBytes + bytes > maxBytes) {
+                carriedOver.set(buffer);
+                break;
+            }
+            batch.add(buffer);
+            batchBytes += bytes;
+            if (batch.size() >= maxMessages) {
+                break;
+            }
+            buffer = nextBuffer(0, unit);
+        }
+        return batch;
+    }
+
+    private ContentStreamBuffer nextBuffer(int timeout, TimeUnit unit) throws InterruptedException {
+        if (prefetcher != null) {
+            return prefetcher.poll(timeout, unit);
+        }
+        return RawdataClientContentStreamBuffer.of(consumer.receive(timeout, unit), tryDecryptContent);
+    }
+
+    static long sizeOf(ContentStreamBuffer buffer) {
+        if (buffer instanceof RawdataClientMessageBuffer) {
+            return ((RawdataClientMessageBuffer) buffer).encodedSize();
+        }
+        long bytes = 0;
+        for (byte[] content : buffer.data().values()) {
+            bytes += content.length;
+        }
+        return bytes;
     }
 
     @Override
@@ -38,7 +130,12 @@ public class RawdataClientContentStreamConsumer implements ContentStreamConsumer
         if (isClosed()) {
             throw new ClosedContentStreamException();
         }
-        consumer.seek(timestamp);
+        carriedOver.set(null);
+        if (prefetcher != null) {
+            prefetcher.seek(timestamp);
+        } else {
+            consumer.seek(timestamp);
+        }
     }
 
     @Override
@@ -49,8 +146,100 @@ public class RawdataClientContentStreamConsumer implements ContentStreamConsumer
     @Override
     public void close() throws Exception {
         if (closed.compareAndSet(false, true)) {
-            closeAndRemoveConsumer.accept(consumer.topic());
+            closeAndRemoveConsumer.accept(this);
+            if (prefetcher != null) {
+                prefetcher.stop();
+            }
             consumer.close();
         }
     }
+
+    /**
+     * Reads messages ahead into a bounded queue. Messages are tagged with the seek generation they were read in,
+     * so that messages read before a seek are discarded instead of being returned after it.
+     */
+    class Prefetcher implements Runnable {
+
+        private final BlockingQueue<Prefetched> queue;
+        private final Object receiveLock = new Object();
+        private final AtomicLong generation = new AtomicLong();
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private final Thread thread;
+
+        Prefetcher(int prefetchSize) {
+            this.queue = new ArrayBlockingQueue<>(prefetchSize);
+            this.thread = RawdataClientExecutors.daemonThreadFactory("rawdata-prefetch-" + consumer.topic() + "-").newThread(this);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed.get()) {
+                    long messageGeneration;
+                    RawdataMessage message;
+                    synchronized (receiveLock) {
+                        messageGeneration = generation.get();
+                        message = consumer.receive(100, TimeUnit.MILLISECONDS);
+                    }
+                    if (message == null) {
+                        continue;
+                    }
+                    // content is decoded on demand by the reader
+                    Prefetched prefetched = new Prefetched(messageGeneration, RawdataClientContentStreamBuffer.of(message, tryDecryptContent));
+                    while (!closed.get() && messageGeneration == generation.get() && !queue.offer(prefetched, 100, TimeUnit.MILLISECONDS)) {
+                        // wait for the queue to drain
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RawdataClosedException e) {
+                failure.set(new ClosedContentStreamException());
+            } catch (RuntimeException e) {
+                if (!closed.get()) {
+                    failure.set(e);
+                }
+            }
+        }
+
+        ContentStreamBuffer poll(int timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (; ; ) {
+                Prefetched prefetched = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (prefetched == null) {
+                    RuntimeException e = failure.get();
+                    if (e != null) {
+                        throw e;
+                    }
+                    return null;
+                }
+                if (prefetched.generation == generation.get()) {
+                    return prefetched.buffer;
+                }
+            }
+        }
+
+        void seek(long timestamp) {
+            synchronized (receiveLock) {
+                generation.incrementAndGet();
+                consumer.seek(timestamp);
+                queue.clear();
+            }
+        }
+
+        void stop() throws InterruptedException {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        }
+    }
+
+    static class Prefetched {
+        final long generation;
+        final ContentStreamBuffer buffer;
+
+        Prefetched(long generation, ContentStreamBuffer buffer) {
+            this.generation = generation;
+            this.buffer = buffer;
+        }
+    }
 }
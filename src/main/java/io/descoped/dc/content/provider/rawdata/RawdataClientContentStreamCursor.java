@@ -0,0 +1,98 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import de.huxhorn.sulky.ulid.ULID;
+import io.descoped.dc.api.content.ContentStreamCursor;
+import io.descoped.rawdata.api.RawdataClient;
+import io.descoped.rawdata.api.RawdataCursor;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * A starting point for a content stream consumer, given either by message ulid or by position.
+ * <p>
+ * Cursors are values: consumers opened with equal cursors on the same topic share one consumer instance.
+ */
+public final class RawdataClientContentStreamCursor implements ContentStreamCursor {
+
+    private final ULID.Value ulid;
+    private final String position;
+    private final boolean inclusive;
+    private final long approxTimestamp;
+    private final Duration tolerance;
+
+    private RawdataClientContentStreamCursor(ULID.Value ulid, String position, boolean inclusive, long approxTimestamp, Duration tolerance) {
+        this.ulid = ulid;
+        this.position = position;
+        this.inclusive = inclusive;
+        this.approxTimestamp = approxTimestamp;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param inclusive whether the message with the given ulid is received first, or skipped
+     */
+    public static RawdataClientContentStreamCursor ofUlid(ULID.Value ulid, boolean inclusive) {
+        Objects.requireNonNull(ulid);
+        return new RawdataClientContentStreamCursor(ulid, null, inclusive, 0, null);
+    }
+
+    /**
+     * @param inclusive       whether the message at the given position is received first, or skipped
+     * @param approxTimestamp approximate write time of the position, used by the rawdata client to narrow the search
+     * @param tolerance       how far from the approximate timestamp the position is searched for
+     */
+    public static RawdataClientContentStreamCursor ofPosition(String position, boolean inclusive, long approxTimestamp, Duration tolerance) {
+        Objects.requireNonNull(position);
+        Objects.requireNonNull(tolerance);
+        return new RawdataClientContentStreamCursor(null, position, inclusive, approxTimestamp, tolerance);
+    }
+
+    public ULID.Value ulid() {
+        return ulid;
+    }
+
+    public String position() {
+        return position;
+    }
+
+    public boolean isInclusive() {
+        return inclusive;
+    }
+
+    RawdataCursor toRawdataCursor(RawdataClient client, String topic) {
+        if (ulid != null) {
+            return client.cursorOf(topic, ulid, inclusive);
+        }
+        RawdataCursor cursor = client.cursorOf(topic, position, inclusive, approxTimestamp, tolerance);
+        if (cursor == null) {
+            throw new IllegalArgumentException("Position '" + position + "' was not found in topic: " + topic);
+        }
+        return cursor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RawdataClientContentStreamCursor that = (RawdataClientContentStreamCursor) o;
+        return inclusive == that.inclusive &&
+                approxTimestamp == that.approxTimestamp &&
+                Objects.equals(ulid, that.ulid) &&
+                Objects.equals(position, that.position) &&
+                Objects.equals(tolerance, that.tolerance);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ulid, position, inclusive, approxTimestamp, tolerance);
+    }
+
+    @Override
+    public String toString() {
+        return "RawdataClientContentStreamCursor{" +
+                (ulid != null ? "ulid=" + ulid : "position='" + position + "'") +
+                ", inclusive=" + inclusive +
+                '}';
+    }
+}
@@ -1,42 +1,139 @@
 package io.descoped.dc.content.provider.rawdata;
 
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import io.descoped.dc.api.content.ClosedContentStreamException;
 import io.descoped.dc.api.content.ContentStreamBuffer;
 import io.descoped.dc.api.content.ContentStreamProducer;
-import io.descoped.dc.api.util.JsonParser;
 import io.descoped.rawdata.api.RawdataMessage;
 import io.descoped.rawdata.api.RawdataProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class RawdataClientContentStreamProducer implements ContentStreamProducer {
 
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientContentStreamProducer.class);
+    private static final CompletableFuture<Void> PUBLISHED = CompletableFuture.completedFuture(null);
+
     private final RawdataProducer producer;
     private final Consumer<String> closeAndRemoveProducer;
     private final Function<byte[], byte[]> tryEncryptContent;
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final Map<String, List<RawdataMessage>> bufferMap;
+    private final Executor publishExecutor;
+    private final Executor batchExecutor; // writes flushed batches
+    private final Semaphore inFlightPermits;
+    private final Object publishFailureLock = new Object();
+    private Throwable publishFailure; // guarded by publishFailureLock
+    private final Set<String> failedPositions = new LinkedHashSet<>(); // guarded by publishFailureLock
+    private CompletableFuture<Void> lastPublish = CompletableFuture.completedFuture(null);
+    private final ScheduledExecutorService lingerScheduler;
+    private final int batchMaxMessages;
+    private final long batchMaxBytes;
+    private final long batchLingerMillis;
+    private final Object batchLock = new Object();
+    private final List<RawdataMessage> pendingBatch = new ArrayList<>();
+    private long pendingBatchBytes;
+    private CompletableFuture<Void> pendingBatchFuture = new CompletableFuture<>();
+    private ScheduledFuture<?> lingerFlush;
+    private final RawdataClientBufferPool bufferPool;
+    private final RawdataClientLatencyMetrics latencyMetrics;
+    private final RawdataClientGroupCommit groupCommit;
+    private final boolean compactManifest;
+    private final boolean concurrentBuffer;
+    private final BiConsumer<String, String> publishedPosition;
+    // pool of builders and publish arrays that is shared by the producers of a content stream, or null when recycling is disabled
+    private final Recycler recycler;
 
     public RawdataClientContentStreamProducer(RawdataProducer producer, Consumer<String> closeAndRemoveProducer, Function<byte[], byte[]> tryEncryptContent) {
+        this(producer, closeAndRemoveProducer, tryEncryptContent, RawdataClientContentStreamConfiguration.defaults(), Collaborators.NONE);
+    }
+
+    /**
+     * @param collaborators executors, pools and callbacks that are shared by the producers of a content stream
+     */
+    RawdataClientContentStreamProducer(RawdataProducer producer, Consumer<String> closeAndRemoveProducer, Function<byte[], byte[]> tryEncryptContent,
+                                       RawdataClientContentStreamConfiguration configuration, Collaborators collaborators) {
+        if (configuration.maxInFlightPublishes() < 1) {
+            throw new IllegalArgumentException("rawdata.publish.async.max-in-flight must be greater than zero: " + configuration.maxInFlightPublishes());
+        }
+        if (configuration.isBatchPublish() && collaborators.lingerScheduler == null) {
+            throw new IllegalArgumentException("Batch publish requires a linger scheduler");
+        }
+        if (configuration.isBatchPublish() && collaborators.publishExecutor == null && collaborators.batchExecutor == null && collaborators.groupCommit == null) {
+            throw new IllegalArgumentException("Batch publish requires a publish executor, a batch executor or a group commit");
+        }
         this.producer = producer;
         this.closeAndRemoveProducer = closeAndRemoveProducer;
         this.tryEncryptContent = tryEncryptContent;
         this.bufferMap = new ConcurrentHashMap<>();
+        this.publishExecutor = collaborators.publishExecutor;
+        this.batchExecutor = collaborators.publishExecutor != null ? collaborators.publishExecutor : collaborators.batchExecutor;
+        this.inFlightPermits = new Semaphore(configuration.maxInFlightPublishes());
+        this.lingerScheduler = configuration.isBatchPublish() ? collaborators.lingerScheduler : null;
+        this.batchMaxMessages = configuration.batchMaxMessages();
+        this.batchMaxBytes = configuration.batchMaxBytes();
+        this.batchLingerMillis = configuration.batchLingerMillis();
+        this.bufferPool = collaborators.bufferPool;
+        this.latencyMetrics = collaborators.latencyMetrics;
+        this.groupCommit = collaborators.groupCommit;
+        this.compactManifest = configuration.isCompactManifest();
+        this.concurrentBuffer = configuration.isConcurrentBuffer();
+        this.publishedPosition = collaborators.publishedPosition;
+        this.recycler = collaborators.recycler;
+    }
+
+    public String topic() {
+        return producer.topic();
     }
 
     @Override
-    public ContentStreamBuffer.Builder builder() {
+    public RawdataClientContentStreamBuffer.Builder builder() {
         if (isClosed()) {
             throw new ClosedContentStreamException();
         }
-        return new RawdataClientContentStreamBuffer.Builder();
+        if (recycler != null) {
+            RawdataClientContentStreamBuffer.Builder builder = recycler.builder();
+            if (builder != null) {
+                return builder;
+            }
+        }
+        if (concurrentBuffer) {
+            return new RawdataClientContentStreamBuffer.ConcurrentBuilder(bufferPool);
+        }
+        return bufferPool != null ? new RawdataClientContentStreamBuffer.PooledBuilder(bufferPool) : new RawdataClientContentStreamBuffer.Builder();
+    }
+
+    /**
+     * Resets a builder of this producer that has been produced, and returns it to the pool of the content stream
+     * when recycling is enabled. The builder must not be used by the caller, or any other thread, afterwards.
+     */
+    public void recycle(RawdataClientContentStreamBuffer.Builder builder) {
+        if (recycler == null) {
+            builder.release();
+            return;
+        }
+        builder.reset();
+        recycler.recycle(builder);
     }
 
     @Override
@@ -61,6 +158,11 @@ public class RawdataClientContentStreamProducer implements ContentStreamProducer
         RawdataMessage message = createRawdataMessage(contentBuffer);
         bufferMessage(message);
 
+        if (bufferBuilder instanceof RawdataClientContentStreamBuffer.Builder) {
+            // the message holds its own copy of the content
+            ((RawdataClientContentStreamBuffer.Builder) bufferBuilder).release();
+        }
+
         return this;
     }
 
@@ -69,31 +171,335 @@ public class RawdataClientContentStreamProducer implements ContentStreamProducer
         if (isClosed()) {
             throw new ClosedContentStreamException();
         }
+        checkPublishFailure();
+        // with batching, this waits until the batch is flushed by size, linger timeout or close
+        CompletableFuture<Void> future = handOff(positions);
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Hands the buffered messages for the given positions off to the publish executor and returns immediately,
+     * unless the in-flight window is full, in which case the caller blocks until a previous publish completes.
+     * Publishes are written to the backend in call order. A failed publish fails only its own positions: the
+     * publishes queued behind it are written, and the next call, or closing the producer, throws the failure once
+     * with the positions that were not written.
+     * <p>
+     * When batching is enabled, messages are appended to the pending batch and the returned future completes
+     * when the batch that contains them has been written.
+     */
+    public CompletableFuture<Void> publishAsync(String... positions) throws ClosedContentStreamException {
+        if (isClosed()) {
+            throw new ClosedContentStreamException();
+        }
+        checkPublishFailure();
+        return recordFailure(handOff(positions), positions);
+    }
+
+    /**
+     * Publishes like {@link #publishAsync(String...)}, without throwing the failure of a previous publish first. The
+     * content store checks for failures with {@link #checkPublishFailure()} before it produces the positions, so
+     * that a failure is never thrown after the positions have been produced.
+     */
+    CompletableFuture<Void> handOffAsync(String... positions) throws ClosedContentStreamException {
+        if (isClosed()) {
+            throw new ClosedContentStreamException();
+        }
+        return recordFailure(handOff(positions), positions);
+    }
+
+    private CompletableFuture<Void> recordFailure(CompletableFuture<Void> future, String[] positions) {
+        // the returned future completes after the failure is recorded, so that a caller that sees it fail also sees
+        // the next call throw
+        return future.whenComplete((v, e) -> {
+            if (e != null) {
+                synchronized (publishFailureLock) {
+                    if (publishFailure == null) {
+                        publishFailure = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    }
+                    failedPositions.addAll(Arrays.asList(positions));
+                }
+            }
+        });
+    }
+
+    private CompletableFuture<Void> handOff(String... positions) {
+        List<RawdataMessage> messages = recycler != null ? recycler.publishMessages() : new ArrayList<>();
+        try {
+            for (String position : positions) {
+                List<RawdataMessage> bufferedMessages = bufferMap.remove(position);
+                if (bufferedMessages != null) {
+                    // the list is not recycled, since a thread that buffers to the position may still hold it
+                    messages.addAll(bufferedMessages);
+                }
+            }
+
+            if (messages.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if (isBatching()) {
+                return appendToBatch(messages);
+            }
+
+            if (recycler != null && groupCommit == null && publishExecutor == null) {
+                // the backend write completes before this call returns, so the array can be reused
+                RawdataMessage[] publishArray = messages.toArray(recycler.publishArray(messages.size()));
+                try {
+                    producer.publish(publishArray);
+                    published(publishArray);
+                } finally {
+                    Arrays.fill(publishArray, null);
+                }
+                return PUBLISHED;
+            }
+
+            return write(messages.toArray(new RawdataMessage[0]));
+        } finally {
+            if (recycler != null) {
+                messages.clear();
+            }
+        }
+    }
+
+    public boolean isBatching() {
+        return lingerScheduler != null;
+    }
+
+    /**
+     * Writes the pending batch, if any, regardless of size and linger thresholds.
+     */
+    public CompletableFuture<Void> flush() {
+        synchronized (batchLock) {
+            return flushBatch();
+        }
+    }
 
-        List<RawdataMessage> messages = new ArrayList<>();
-        for (String position : positions) {
-            List<RawdataMessage> bufferedMessages = bufferMap.remove(position);
-            if (bufferedMessages != null) {
-                messages.addAll(bufferedMessages);
+    private CompletableFuture<Void> appendToBatch(List<RawdataMessage> messages) {
+        // flushed batches do not wait for an in-flight permit, so the caller waits for one outside the batch lock
+        try {
+            inFlightPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        inFlightPermits.release();
+        synchronized (batchLock) {
+            // close flushes the pending batch under the lock, so nothing may be appended after it
+            if (isClosed()) {
+                throw new ClosedContentStreamException();
+            }
+            pendingBatch.addAll(messages);
+            for (RawdataMessage message : messages) {
+                pendingBatchBytes += messageSize(message);
             }
+            CompletableFuture<Void> batchFuture = pendingBatchFuture;
+            if (pendingBatch.size() >= batchMaxMessages || pendingBatchBytes >= batchMaxBytes) {
+                flushBatch();
+            } else if (lingerFlush == null) {
+                lingerFlush = lingerScheduler.schedule(this::lingerFlush, batchLingerMillis, TimeUnit.MILLISECONDS);
+            }
+            return batchFuture;
         }
+    }
 
-        if (!messages.isEmpty()) {
-            producer.publish(messages.toArray(new RawdataMessage[0]));
+    // guarded by batchLock
+    private CompletableFuture<Void> flushBatch() {
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        if (pendingBatch.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        RawdataMessage[] messages = pendingBatch.toArray(new RawdataMessage[0]);
+        pendingBatch.clear();
+        pendingBatchBytes = 0;
+        CompletableFuture<Void> batchFuture = pendingBatchFuture;
+        pendingBatchFuture = new CompletableFuture<>();
+        try {
+            writeBatch(messages).whenComplete((v, e) -> {
+                if (e == null) {
+                    batchFuture.complete(null);
+                } else {
+                    batchFuture.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            batchFuture.completeExceptionally(e);
+            throw e;
+        }
+        return batchFuture;
+    }
+
+    private void lingerFlush() {
+        try {
+            synchronized (batchLock) {
+                lingerFlush = null;
+                flushBatch();
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Error flushing publish batch for topic: {}", producer.topic(), e);
+        }
+    }
+
+    /**
+     * Submits a flushed batch without blocking, so that neither the batch lock nor the shared linger scheduler waits
+     * for the backend. Batches are written in flush order by a publish thread, or by the group commit. A batch holds an
+     * in-flight permit when one is free, and callers that append to a batch wait for a free permit instead.
+     */
+    // guarded by batchLock
+    private CompletableFuture<Void> writeBatch(RawdataMessage[] messages) {
+        boolean permit = inFlightPermits.tryAcquire();
+        CompletableFuture<Void> future;
+        try {
+            synchronized (this) {
+                if (groupCommit != null) {
+                    // the group commit writes a topic in submit order
+                    future = groupCommit.submit(producer, messages).thenRun(() -> published(messages));
+                } else {
+                    // a failed publish does not fail the publishes queued behind it
+                    future = lastPublish.exceptionally(e -> null).thenRunAsync(() -> {
+                        producer.publish(messages);
+                        published(messages);
+                    }, batchExecutor);
+                }
+                lastPublish = future;
+            }
+        } catch (RuntimeException e) {
+            if (permit) {
+                inFlightPermits.release();
+            }
+            throw e;
+        }
+        if (permit) {
+            future.whenComplete((v, e) -> inFlightPermits.release());
+        }
+        return future;
+    }
+
+    private static long messageSize(RawdataMessage message) {
+        long size = 0;
+        for (byte[] value : message.data().values()) {
+            size += value.length;
+        }
+        return size;
+    }
+
+    private CompletableFuture<Void> write(RawdataMessage[] messages) {
+        if (groupCommit != null) {
+            return groupCommit(messages);
+        }
+        if (publishExecutor == null) {
+            producer.publish(messages);
+            published(messages);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        try {
+            inFlightPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            // a failed publish does not fail the publishes queued behind it
+            future = lastPublish.exceptionally(e -> null).thenRunAsync(() -> {
+                producer.publish(messages);
+                published(messages);
+            }, publishExecutor);
+            lastPublish = future;
+        }
+        future.whenComplete((v, e) -> inFlightPermits.release());
+        return future;
+    }
+
+    private CompletableFuture<Void> groupCommit(RawdataMessage[] messages) {
+        try {
+            inFlightPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            // the group commit writes a topic in submit order, so the last submit completes after all previous ones
+            try {
+                future = groupCommit.submit(producer, messages);
+            } catch (RuntimeException e) {
+                inFlightPermits.release();
+                throw e;
+            }
+            lastPublish = future;
+        }
+        future.whenComplete((v, e) -> {
+            inFlightPermits.release();
+            if (e == null) {
+                published(messages);
+            }
+        });
+        return future;
+    }
+
+    private void published(RawdataMessage[] messages) {
+        if (publishedPosition != null && messages.length > 0) {
+            publishedPosition.accept(topic(), messages[messages.length - 1].position());
+        }
+    }
+
+    /**
+     * Throws the failure of previous asynchronous publishes, with the positions that were not written. A failure is
+     * thrown once, so that a transient backend error does not fail the publishes that follow.
+     */
+    void checkPublishFailure() {
+        Throwable failure;
+        List<String> positions;
+        synchronized (publishFailureLock) {
+            if (publishFailure == null) {
+                return;
+            }
+            failure = publishFailure;
+            positions = new ArrayList<>(failedPositions);
+            publishFailure = null;
+            failedPositions.clear();
+        }
+        throw new RuntimeException("Asynchronous publish failed for topic: " + producer.topic() + ", positions: " + positions, failure);
+    }
+
+    private void awaitInFlightPublishes() {
+        CompletableFuture<Void> inFlight;
+        synchronized (this) {
+            inFlight = lastPublish;
+        }
+        try {
+            inFlight.join();
+        } catch (CompletionException e) {
+            // failure is recorded by recordFailure
         }
     }
 
     private ContentStreamBuffer prepareContentBuffer(ContentStreamBuffer.Builder bufferBuilder) {
-        JsonParser jsonParser = JsonParser.createJsonParser();
-        ArrayNode arrayNode = jsonParser.createArrayNode();
-        bufferBuilder.manifest().forEach(metadataContent -> arrayNode.add(metadataContent.getElementNode()));
-        byte[] manifestJson = jsonParser.toJSON(arrayNode).getBytes();
+        long start = System.nanoTime();
+        byte[] manifestJson = RawdataClientManifestWriter.write(bufferBuilder.manifest(), compactManifest);
+        if (latencyMetrics != null) {
+            latencyMetrics.record(topic(), RawdataClientLatencyMetrics.Operation.MANIFEST, System.nanoTime() - start);
+        }
 
         if (tryEncryptContent != null) {
             manifestJson = tryEncryptContent.apply(manifestJson);
         }
 
-        bufferBuilder.buffer("manifest.json", manifestJson, null);
+        bufferBuilder.buffer(RawdataClientContentStreamBuffer.MANIFEST_KEY, manifestJson, null);
 
         return bufferBuilder.build();
     }
@@ -106,7 +512,9 @@ public class RawdataClientContentStreamProducer implements ContentStreamProducer
         }
         messageBuilder.position(buffer.position());
 
-        for (Map.Entry<String, byte[]> entry : buffer.data().entrySet()) {
+        // consumed messages are copied as stored, so that encoded entries match the copied manifest
+        Map<String, byte[]> data = buffer instanceof RawdataClientMessageBuffer ? ((RawdataClientMessageBuffer) buffer).storedData() : buffer.data();
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
             messageBuilder.put(entry.getKey(), entry.getValue());
         }
 
@@ -125,8 +533,13 @@ public class RawdataClientContentStreamProducer implements ContentStreamProducer
     public void close() throws Exception {
         if (closed.compareAndSet(false, true)) {
             try {
+                if (isBatching()) {
+                    flush();
+                }
+                awaitInFlightPublishes();
                 // Publish all remaining buffered messages
                 publishAllBufferedMessages();
+                checkPublishFailure();
             } finally {
                 closeAndRemoveProducer.accept(producer.topic());
                 producer.close();
@@ -141,10 +554,106 @@ public class RawdataClientContentStreamProducer implements ContentStreamProducer
         }
 
         if (!allMessages.isEmpty()) {
-            producer.publish(allMessages.toArray(new RawdataMessage[0]));
+            RawdataMessage[] messages = allMessages.toArray(new RawdataMessage[0]);
+            producer.publish(messages);
+            published(messages);
         }
 
         // Clear the buffer after publishing
         bufferMap.clear();
     }
-}
\ No newline at end of file
+
+    /**
+     * Executors, pools and callbacks that a content stream shares between its producers. A null collaborator disables
+     * the feature it serves.
+     */
+    static class Collaborators {
+
+        static final Collaborators NONE = new Collaborators(null, null, null, null, null, null, null, null);
+
+        final Executor publishExecutor; // performs backend writes, or null to publish on the calling thread
+        final ScheduledExecutorService lingerScheduler; // flushes batches on linger timeout
+        final Executor batchExecutor; // writes flushed batches when there is no publish executor
+        final RawdataClientBufferPool bufferPool; // holds buffered content off-heap
+        final RawdataClientLatencyMetrics latencyMetrics; // records manifest serialization latency
+        final RawdataClientGroupCommit groupCommit; // commits the writes of all topics together
+        final BiConsumer<String, String> publishedPosition; // called with the topic and last position of each acknowledged write
+        final Recycler recycler; // reuses builders and publish arrays
+
+        Collaborators(Executor publishExecutor, ScheduledExecutorService lingerScheduler, Executor batchExecutor, RawdataClientBufferPool bufferPool,
+                      RawdataClientLatencyMetrics latencyMetrics, RawdataClientGroupCommit groupCommit, BiConsumer<String, String> publishedPosition,
+                      Recycler recycler) {
+            this.publishExecutor = publishExecutor;
+            this.lingerScheduler = lingerScheduler;
+            this.batchExecutor = batchExecutor;
+            this.bufferPool = bufferPool;
+            this.latencyMetrics = latencyMetrics;
+            this.groupCommit = groupCommit;
+            this.publishedPosition = publishedPosition;
+            this.recycler = recycler;
+        }
+    }
+
+    /**
+     * Builders that are shared by the producers of a content stream, and publish lists and arrays that are reused by
+     * one thread. Pooled objects hold no messages or content while they are in the pool.
+     * <p>
+     * Builders are pooled only when they are not buffered to by concurrent threads, since such a thread may still
+     * hold a builder after its position was published.
+     */
+    static class Recycler {
+        static final int MAX_POOLED = 64;
+        static final int MAX_PUBLISH_ARRAY_LENGTH = 16;
+
+        private final ConcurrentLinkedDeque<RawdataClientContentStreamBuffer.Builder> builders = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger pooledBuilderCount = new AtomicInteger();
+        private final ThreadLocal<List<RawdataMessage>> publishMessages = ThreadLocal.withInitial(ArrayList::new);
+        private final ThreadLocal<RawdataMessage[][]> publishArrays = ThreadLocal.withInitial(() -> new RawdataMessage[MAX_PUBLISH_ARRAY_LENGTH + 1][]);
+
+        /**
+         * @return a pooled builder, or null if the pool is empty
+         */
+        RawdataClientContentStreamBuffer.Builder builder() {
+            RawdataClientContentStreamBuffer.Builder builder = builders.pollFirst();
+            if (builder != null) {
+                pooledBuilderCount.decrementAndGet();
+            }
+            return builder;
+        }
+
+        void recycle(RawdataClientContentStreamBuffer.Builder builder) {
+            if (pooledBuilderCount.incrementAndGet() <= MAX_POOLED) {
+                builders.offerFirst(builder);
+            } else {
+                pooledBuilderCount.decrementAndGet();
+            }
+        }
+
+        int pooledBuilderCount() {
+            return pooledBuilderCount.get();
+        }
+
+        /**
+         * @return an empty list that is shared by this thread, and must be cleared before the thread uses it again
+         */
+        List<RawdataMessage> publishMessages() {
+            return publishMessages.get();
+        }
+
+        /**
+         * @return an array of exactly the given length, which is shared by this thread when it is short
+         */
+        RawdataMessage[] publishArray(int length) {
+            if (length > MAX_PUBLISH_ARRAY_LENGTH) {
+                return new RawdataMessage[length];
+            }
+            RawdataMessage[][] threadPublishArrays = publishArrays.get();
+            RawdataMessage[] publishArray = threadPublishArrays[length];
+            if (publishArray == null) {
+                publishArray = new RawdataMessage[length];
+                threadPublishArrays[length] = publishArray;
+            }
+            return publishArray;
+        }
+    }
+}
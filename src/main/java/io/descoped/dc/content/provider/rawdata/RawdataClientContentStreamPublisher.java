@@ -0,0 +1,232 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import io.descoped.dc.api.content.ClosedContentStreamException;
+import io.descoped.dc.api.content.ContentStreamBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A {@link Flow.Publisher} view of a topic. Messages are only read when the subscriber has signalled demand.
+ * <p>
+ * Reads never block: a subscription polls its consumer on a shared executor, and when the topic has no new messages
+ * the next poll is scheduled on a shared timer. An idle topic therefore does not hold a thread.
+ * <p>
+ * The publisher is unicast. It opens its consumer when it is subscribed to, and a second subscriber is rejected.
+ */
+public class RawdataClientContentStreamPublisher implements Flow.Publisher<ContentStreamBuffer> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientContentStreamPublisher.class);
+
+    private final Supplier<RawdataClientContentStreamConsumer> consumerFactory;
+    private final Executor executor;
+    private final ScheduledExecutorService pollScheduler;
+    private final int batchSize;
+    private final long pollIntervalMillis;
+    private final Set<Subscription> activeSubscriptions;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    RawdataClientContentStreamPublisher(Supplier<RawdataClientContentStreamConsumer> consumerFactory, Executor executor, ScheduledExecutorService pollScheduler,
+                                        int batchSize, long pollIntervalMillis, Set<Subscription> activeSubscriptions) {
+        this.consumerFactory = consumerFactory;
+        this.executor = executor;
+        this.pollScheduler = pollScheduler;
+        this.batchSize = batchSize;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.activeSubscriptions = activeSubscriptions;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ContentStreamBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(EmptySubscription.INSTANCE);
+            subscriber.onError(new IllegalStateException("Publisher has already been subscribed to"));
+            return;
+        }
+        RawdataClientContentStreamConsumer consumer;
+        try {
+            consumer = consumerFactory.get();
+        } catch (RuntimeException e) {
+            subscriber.onSubscribe(EmptySubscription.INSTANCE);
+            subscriber.onError(e);
+            return;
+        }
+        Subscription subscription = new Subscription(subscriber, consumer);
+        activeSubscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    class Subscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super ContentStreamBuffer> subscriber;
+        private final RawdataClientContentStreamConsumer consumer;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger workInProgress = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        private volatile Throwable requestError;
+        private volatile boolean terminated;
+
+        Subscription(Flow.Subscriber<? super ContentStreamBuffer> subscriber, RawdataClientContentStreamConsumer consumer) {
+            this.subscriber = subscriber;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                requestError = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        /**
+         * Signals onComplete to the subscriber, e.g. when the content stream is closed.
+         */
+        void complete() {
+            completed = true;
+            schedule();
+        }
+
+        void schedule() {
+            if (workInProgress.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    workInProgress.set(0);
+                    terminate();
+                }
+            }
+        }
+
+        // serialized by workInProgress: at most one thread drains a subscription at a time
+        @Override
+        public void run() {
+            int missed = 1;
+            boolean delivered = false;
+            boolean polledEmpty = false;
+            for (; ; ) {
+                if (terminated) {
+                    return;
+                }
+                if (cancelled) {
+                    terminate();
+                    return;
+                }
+                if (requestError != null) {
+                    terminate();
+                    subscriber.onError(requestError);
+                    return;
+                }
+                if (completed || consumer.isClosed()) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+                long requested = demand.get();
+                delivered = false;
+                polledEmpty = false;
+                if (requested > 0) {
+                    List<ContentStreamBuffer> batch;
+                    try {
+                        batch = consumer.receiveBatch((int) Math.min(requested, batchSize), Long.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+                    } catch (ClosedContentStreamException e) {
+                        terminate();
+                        subscriber.onComplete();
+                        return;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        terminate();
+                        subscriber.onError(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        terminate();
+                        subscriber.onError(e);
+                        return;
+                    }
+                    for (ContentStreamBuffer buffer : batch) {
+                        if (cancelled) {
+                            break;
+                        }
+                        try {
+                            subscriber.onNext(buffer);
+                        } catch (RuntimeException e) {
+                            LOG.error("Subscriber of topic {} failed and is cancelled", consumer.topic(), e);
+                            cancelled = true;
+                            break;
+                        }
+                        if (requested != Long.MAX_VALUE) {
+                            demand.decrementAndGet();
+                        }
+                    }
+                    delivered = !batch.isEmpty();
+                    polledEmpty = batch.isEmpty();
+                }
+                missed = workInProgress.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+            if (delivered && demand.get() > 0) {
+                // resubmit rather than loop, so that other subscriptions get a turn on the executor
+                schedule();
+            } else if (polledEmpty) {
+                pollLater();
+            }
+        }
+
+        private void pollLater() {
+            try {
+                pollScheduler.schedule(this::schedule, pollIntervalMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the content stream is closing
+            }
+        }
+
+        private void terminate() {
+            if (terminated) {
+                return;
+            }
+            terminated = true;
+            activeSubscriptions.remove(this);
+            try {
+                consumer.close();
+            } catch (Exception e) {
+                LOG.warn("Error closing consumer of topic: {}", consumer.topic(), e);
+            }
+        }
+    }
+
+    static class EmptySubscription implements Flow.Subscription {
+        static final EmptySubscription INSTANCE = new EmptySubscription();
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content hashes of the last published content of each topic, position and content key, so that entries that are
+ * fetched again without changes are not published again to the same position. Hashes are kept in a bounded in-memory
+ * table, and the least recently used hashes are evicted to a memory-mapped index when a directory is configured. The
+ * index is persisted, and the in-memory hashes are written to it when the dedup index is closed, so that duplicates
+ * are detected after a restart.
+ * <p>
+ * The memory-mapped index is a fixed size open addressing table of {@code [key fingerprint][content hash]} slots.
+ * When no free slot is found near the home slot of a key, the home slot is overwritten, and the overwritten key is
+ * published again the next time it is buffered.
+ */
+public class RawdataClientDedupIndex implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientDedupIndex.class);
+
+    static final String INDEX_FILE = "rawdata-dedup.idx";
+    static final int HASH_SIZE = 16;
+
+    private static final int MAGIC = 0x44445550; // DDUP
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final int SLOT_SIZE = Long.BYTES + HASH_SIZE;
+    private static final int MAX_PROBES = 8;
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Set<String> topics;
+    private final Map<Long, byte[]> hashes; // guarded by this
+    private final SpillIndex spillIndex;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param topics     topics to deduplicate, or an empty set to deduplicate all topics
+     * @param directory  directory of the memory-mapped index, or null to keep hashes in memory only
+     * @param spillSlots number of hashes in the memory-mapped index
+     */
+    RawdataClientDedupIndex(Set<String> topics, int maxEntries, Path directory, int spillSlots) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("rawdata.dedup.max-entries must be greater than zero: " + maxEntries);
+        }
+        this.topics = topics;
+        this.spillIndex = directory != null ? new SpillIndex(directory.resolve(INDEX_FILE), spillSlots) : null;
+        this.hashes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                if (spillIndex != null) {
+                    spillIndex.put(eldest.getKey(), eldest.getValue());
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return a hash of the plain text content of an entry
+     */
+    static byte[] hash(byte[] content) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return Arrays.copyOf(digest.digest(content), HASH_SIZE);
+    }
+
+    boolean isDeduplicated(String topic) {
+        return topics.isEmpty() || topics.contains(topic);
+    }
+
+    /**
+     * Counts a hit if the content hash equals the last published content hash of the content key at the position, and
+     * a miss otherwise.
+     */
+    boolean isPublished(String topic, String position, String contentKey, byte[] contentHash) {
+        long fingerprint = fingerprint(topic, position, contentKey);
+        byte[] publishedHash;
+        synchronized (this) {
+            publishedHash = hashes.get(fingerprint);
+            if (publishedHash == null && spillIndex != null) {
+                publishedHash = spillIndex.get(fingerprint);
+                if (publishedHash != null) {
+                    hashes.put(fingerprint, publishedHash);
+                }
+            }
+        }
+        boolean published = publishedHash != null && Arrays.equals(publishedHash, contentHash);
+        (published ? hits : misses).increment();
+        return published;
+    }
+
+    /**
+     * Records the content hash of a published entry.
+     */
+    synchronized void published(String topic, String position, String contentKey, byte[] contentHash) {
+        hashes.put(fingerprint(topic, position, contentKey), contentHash);
+    }
+
+    private static long fingerprint(String topic, String position, String contentKey) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(topic.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(position.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        long fingerprint = ByteBuffer.wrap(digest.digest(contentKey.getBytes(StandardCharsets.UTF_8))).getLong();
+        // zero marks a free slot in the memory-mapped index
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    /**
+     * @return number of buffered entries that were skipped because they were published before
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of buffered entries that were new or changed
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of content hashes in memory
+     */
+    public synchronized int size() {
+        return hashes.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (spillIndex != null) {
+            hashes.forEach(spillIndex::put);
+            spillIndex.close();
+        }
+        hashes.clear();
+    }
+
+    static class SpillIndex {
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer mapped;
+        private final int slots;
+
+        SpillIndex(Path file, int slots) {
+            this.file = file;
+            try {
+                Files.createDirectories(file.getParent());
+                this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                boolean exists = channel.size() >= HEADER_SIZE;
+                if (exists) {
+                    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                    if (header.getInt(0) != MAGIC) {
+                        throw new IllegalStateException("Not a dedup index: " + file);
+                    }
+                    // an existing index keeps its size
+                    slots = header.getInt(Integer.BYTES);
+                } else if (slots < 1 || HEADER_SIZE + (long) slots * SLOT_SIZE > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Invalid rawdata.dedup.spill-slots: " + slots);
+                }
+                this.slots = slots;
+                this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+                if (!exists) {
+                    mapped.putInt(0, MAGIC).putInt(Integer.BYTES, slots);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        byte[] get(long fingerprint) {
+            int home = homeSlot(fingerprint);
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                int offset = offset((home + probe) % slots);
+                long slotFingerprint = mapped.getLong(offset);
+                if (slotFingerprint == 0) {
+                    return null;
+                }
+                if (slotFingerprint == fingerprint) {
+                    byte[] contentHash = new byte[HASH_SIZE];
+                    mapped.get(offset + Long.BYTES, contentHash);
+                    return contentHash;
+                }
+            }
+            return null;
+        }
+
+        void put(long fingerprint, byte[] contentHash) {
+            int home = homeSlot(fingerprint);
+            int offset = offset(home);
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                int probeOffset = offset((home + probe) % slots);
+                long slotFingerprint = mapped.getLong(probeOffset);
+                if (slotFingerprint == 0 || slotFingerprint == fingerprint) {
+                    offset = probeOffset;
+                    break;
+                }
+            }
+            mapped.put(offset + Long.BYTES, contentHash);
+            mapped.putLong(offset, fingerprint);
+        }
+
+        private int homeSlot(long fingerprint) {
+            return (int) Long.remainderUnsigned(fingerprint, slots);
+        }
+
+        private static int offset(int slot) {
+            return HEADER_SIZE + slot * SLOT_SIZE;
+        }
+
+        void close() {
+            try {
+                mapped.force();
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close dedup index: {}", file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Shares derived secret keys between content stores that are initialized with the same encryption key and salt,
+ * so that re-initializing a store (e.g. during recovery) does not repeat the PBKDF2 key derivation.
+ * <p>
+ * Entries are identified by an HMAC-SHA256 fingerprint of the key and salt, with a random HMAC key that is created
+ * per process, so that the fingerprints held in memory cannot be used to test passwords without the PBKDF2 cost. The
+ * key material is reference counted. When the last lease is closed, the derived key is retained for the given
+ * retention period, and then zeroed and evicted by a scheduled task. A retention of zero zeroes the key immediately.
+ * <p>
+ * Keys are derived outside the cache lock, so that stores that acquire different keys do not wait for each other.
+ */
+public class RawdataClientEncryptionKeyCache {
+
+    private static final byte[] FINGERPRINT_KEY = new byte[32];
+
+    static {
+        new SecureRandom().nextBytes(FINGERPRINT_KEY);
+    }
+
+    private static final RawdataClientEncryptionKeyCache SHARED = new RawdataClientEncryptionKeyCache();
+
+    private final Map<ByteBuffer, Entry> entries = new HashMap<>();
+    private ScheduledExecutorService evictor; // guarded by entries
+
+    RawdataClientEncryptionKeyCache() {
+    }
+
+    public static RawdataClientEncryptionKeyCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param deriveKey       derives the secret key from the encryption key and salt, when it is not cached
+     * @param retentionMillis how long the key is kept after the last lease is closed
+     */
+    public Lease acquire(char[] encryptionKey, byte[] encryptionSalt, BiFunction<char[], byte[], byte[]> deriveKey, long retentionMillis) {
+        ByteBuffer fingerprint = fingerprint(encryptionKey, encryptionSalt);
+        Entry entry;
+        synchronized (entries) {
+            evictExpired(System.currentTimeMillis());
+            entry = entries.computeIfAbsent(fingerprint, f -> new Entry());
+            // the lease keeps the entry from being evicted while its key is derived
+            entry.leaseCount++;
+            entry.retentionMillis = retentionMillis;
+        }
+        try {
+            synchronized (entry) {
+                if (entry.secretKey == null) {
+                    entry.secretKey = deriveKey.apply(encryptionKey, encryptionSalt);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            release(entry);
+            throw e;
+        }
+        return new Lease(entry);
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Zeroes and evicts all keys that are not leased. Leased keys are zeroed when their last lease is closed.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.values().forEach(entry -> entry.retentionMillis = 0);
+            evictExpired(Long.MAX_VALUE);
+        }
+    }
+
+    private void release(Entry entry) {
+        synchronized (entries) {
+            entry.leaseCount--;
+            entry.releasedAt = System.currentTimeMillis();
+            evictExpired(entry.releasedAt);
+            if (entry.leaseCount == 0 && entries.containsValue(entry)) {
+                scheduleEviction(entry.retentionMillis);
+            }
+        }
+    }
+
+    // guarded by entries
+    private void scheduleEviction(long delayMillis) {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(RawdataClientExecutors.daemonThreadFactory("rawdata-encryption-key-evictor-"));
+        }
+        evictor.schedule(() -> {
+            synchronized (entries) {
+                evictExpired(System.currentTimeMillis());
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // guarded by entries
+    private void evictExpired(long now) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.leaseCount == 0 && now - entry.releasedAt >= entry.retentionMillis) {
+                entry.zero();
+                it.remove();
+            }
+        }
+    }
+
+    static ByteBuffer fingerprint(char[] encryptionKey, byte[] encryptionSalt) {
+        ByteBuffer keyBytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(encryptionKey));
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(FINGERPRINT_KEY, "HmacSHA256"));
+            mac.update(keyBytes.duplicate());
+            mac.update((byte) 0);
+            mac.update(encryptionSalt);
+            return ByteBuffer.wrap(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (keyBytes.hasArray()) {
+                Arrays.fill(keyBytes.array(), (byte) 0);
+            }
+        }
+    }
+
+    static class Entry {
+        volatile byte[] secretKey; // guarded by this while it is derived
+        int leaseCount;
+        long releasedAt;
+        long retentionMillis;
+
+        void zero() {
+            byte[] key = secretKey;
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+    }
+
+    public class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed;
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public byte[] secretKey() {
+            return entry.secretKey;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            release(entry);
+        }
+    }
+}
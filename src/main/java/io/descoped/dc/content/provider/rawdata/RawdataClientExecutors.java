@@ -0,0 +1,47 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class RawdataClientExecutors {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientExecutors.class);
+
+    private RawdataClientExecutors() {
+    }
+
+    static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Creates an executor of the given kind. Virtual threads are looked up at runtime, because the module is
+     * compiled for Java 17. If the running JVM does not support them, a platform thread pool is used instead.
+     *
+     * @param kind (platform | virtual)
+     */
+    static ExecutorService newExecutor(String kind, int threads, String namePrefix) {
+        if ("virtual".equals(kind)) {
+            try {
+                Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("Virtual threads are not supported by this JVM. Fallback to platform threads: {}", namePrefix);
+            }
+        } else if (!"platform".equals(kind)) {
+            throw new IllegalArgumentException("Unknown executor kind: " + kind);
+        }
+        return Executors.newFixedThreadPool(threads, daemonThreadFactory(namePrefix));
+    }
+}
@@ -0,0 +1,190 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import io.descoped.dc.api.content.ClosedContentStreamException;
+import io.descoped.rawdata.api.RawdataMessage;
+import io.descoped.rawdata.api.RawdataProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gathers the writes of all topic producers of a content stream within a short window and commits them as a group.
+ * The writes of a topic within a window are merged into one backend write, and the writes of a group are issued in
+ * parallel on a shared executor. Writes to a topic are committed in submit order, and each submit completes when the
+ * write of its topic has been acknowledged.
+ */
+public class RawdataClientGroupCommit implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientGroupCommit.class);
+
+    private final long windowMillis;
+    private final int maxMessages;
+    private final ScheduledExecutorService windowScheduler;
+    private final ExecutorService writeExecutor;
+    private final Object lock = new Object();
+    private final Map<RawdataProducer, PendingWrite> pendingWrites = new LinkedHashMap<>();
+    private final Map<RawdataProducer, CompletableFuture<Void>> lastWriteByProducer = new ConcurrentHashMap<>();
+    private final LongAdder groupCount = new LongAdder();
+    private final LongAdder writeCount = new LongAdder();
+    private final LongAdder messageCount = new LongAdder();
+    private int pendingMessageCount;
+    private ScheduledFuture<?> windowFlush;
+    private boolean closed;
+
+    RawdataClientGroupCommit(long windowMillis, int maxMessages, ScheduledExecutorService windowScheduler, ExecutorService writeExecutor) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("rawdata.publish.group-commit.max-messages must be greater than zero: " + maxMessages);
+        }
+        this.windowMillis = windowMillis;
+        this.maxMessages = maxMessages;
+        this.windowScheduler = windowScheduler;
+        this.writeExecutor = writeExecutor;
+    }
+
+    /**
+     * Adds messages to the current group. The group is committed when the window has passed since its first write
+     * was submitted, or when it holds {@code max-messages}.
+     *
+     * @return a future that completes when the messages have been written
+     */
+    CompletableFuture<Void> submit(RawdataProducer producer, RawdataMessage[] messages) {
+        synchronized (lock) {
+            if (closed) {
+                throw new ClosedContentStreamException();
+            }
+            PendingWrite pendingWrite = pendingWrites.computeIfAbsent(producer, PendingWrite::new);
+            pendingWrite.messages.addAll(Arrays.asList(messages));
+            pendingMessageCount += messages.length;
+            CompletableFuture<Void> future = pendingWrite.future;
+            if (pendingMessageCount >= maxMessages) {
+                commitGroup();
+            } else if (windowFlush == null) {
+                windowFlush = windowScheduler.schedule(this::windowFlush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Commits the current group regardless of window and size.
+     */
+    void flush() {
+        synchronized (lock) {
+            commitGroup();
+        }
+    }
+
+    // guarded by lock
+    private void commitGroup() {
+        if (windowFlush != null) {
+            windowFlush.cancel(false);
+            windowFlush = null;
+        }
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+        groupCount.increment();
+        for (PendingWrite pendingWrite : pendingWrites.values()) {
+            RawdataProducer producer = pendingWrite.producer;
+            RawdataMessage[] messages = pendingWrite.messages.toArray(new RawdataMessage[0]);
+            CompletableFuture<Void> previousWrite = lastWriteByProducer.getOrDefault(producer, CompletableFuture.completedFuture(null));
+            // a failed write does not fail the writes of the topic that follow it
+            CompletableFuture<Void> write = previousWrite.exceptionally(e -> null).thenRunAsync(() -> producer.publish(messages), writeExecutor);
+            lastWriteByProducer.put(producer, write);
+            write.whenComplete((v, e) -> {
+                lastWriteByProducer.remove(producer, write);
+                if (e == null) {
+                    writeCount.increment();
+                    messageCount.add(messages.length);
+                    pendingWrite.future.complete(null);
+                } else {
+                    pendingWrite.future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                }
+            });
+        }
+        pendingWrites.clear();
+        pendingMessageCount = 0;
+    }
+
+    private void windowFlush() {
+        try {
+            synchronized (lock) {
+                windowFlush = null;
+                commitGroup();
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Error committing publish group", e);
+        }
+    }
+
+    /**
+     * @return number of groups committed
+     */
+    public long groupCount() {
+        return groupCount.sum();
+    }
+
+    /**
+     * @return number of backend writes, which is at most one per topic and group
+     */
+    public long writeCount() {
+        return writeCount.sum();
+    }
+
+    public long messageCount() {
+        return messageCount.sum();
+    }
+
+    public int pendingMessageCount() {
+        synchronized (lock) {
+            return pendingMessageCount;
+        }
+    }
+
+    /**
+     * Commits the current group and waits for all writes to complete.
+     */
+    @Override
+    public void close() throws Exception {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            commitGroup();
+        }
+        for (CompletableFuture<Void> write : List.copyOf(lastWriteByProducer.values())) {
+            try {
+                write.join();
+            } catch (CompletionException e) {
+                // failure is reported to the submitter
+            }
+        }
+        windowScheduler.shutdownNow();
+        writeExecutor.shutdown();
+        writeExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    static class PendingWrite {
+        final RawdataProducer producer;
+        final List<RawdataMessage> messages = new ArrayList<>();
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(RawdataProducer producer) {
+            this.producer = producer;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the style of HdrHistogram. Each power of two range is
+ * split into 16 linear sub-buckets, which bounds the relative error of a reported value to about 6%. Values are
+ * recorded in nanoseconds, and values above ~18 minutes are recorded in the highest bucket.
+ * <p>
+ * Recording is a single atomic increment, and percentiles are computed from a snapshot of the bucket counts.
+ */
+public class RawdataClientLatencyHistogram {
+
+    static final int SUB_BUCKET_COUNT = 32;
+    static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    static final int SUB_BUCKET_HALF_COUNT_BITS = Integer.numberOfTrailingZeros(SUB_BUCKET_HALF_COUNT);
+    static final long MAX_TRACKABLE_VALUE = (1L << 40) - 1;
+    static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_TRACKABLE_VALUE);
+        counts.incrementAndGet(bucketIndex(value));
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] snapshotCounts = new long[BUCKET_COUNT];
+        long totalCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshotCounts[i] = counts.get(i);
+            totalCount += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, totalCount, max.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_HALF_COUNT_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + subBucket;
+    }
+
+    static long highestEquivalentValue(int bucketIndex) {
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+        int shift = (bucketIndex - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (bucketIndex - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long maxNanos() {
+            return max;
+        }
+
+        /**
+         * @param percentile in the range 0..100
+         * @return the highest value of the bucket that holds the percentile, or 0 if nothing has been recorded
+         */
+        public long valueAtPercentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestEquivalentValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        public long p50Nanos() {
+            return valueAtPercentileNanos(50.0);
+        }
+
+        public long p99Nanos() {
+            return valueAtPercentileNanos(99.0);
+        }
+
+        public long p999Nanos() {
+            return valueAtPercentileNanos(99.9);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count +
+                    ", p50=" + TimeUnit.NANOSECONDS.toMicros(p50Nanos()) + "us" +
+                    ", p99=" + TimeUnit.NANOSECONDS.toMicros(p99Nanos()) + "us" +
+                    ", p999=" + TimeUnit.NANOSECONDS.toMicros(p999Nanos()) + "us" +
+                    ", max=" + TimeUnit.NANOSECONDS.toMicros(max) + "us";
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms per operation, for all topics and per topic. The histograms of a topic are created when a
+ * producer of the topic is opened, and dropped when the topic is closed. Latencies of a closed topic, e.g. of an
+ * asynchronous publish that completes after the topic was closed, are only recorded in the histograms of all topics.
+ */
+public class RawdataClientLatencyMetrics {
+
+    public enum Operation {
+        BUFFER,
+        ENCRYPT,
+        MANIFEST,
+        PRODUCE,
+        PUBLISH
+    }
+
+    private final Histograms total = new Histograms();
+    private final Map<String, Histograms> histogramsByTopic = new ConcurrentHashMap<>();
+
+    public void record(String topic, Operation operation, long nanos) {
+        total.get(operation).record(nanos);
+        Histograms histograms = histogramsByTopic.get(topic);
+        if (histograms != null) {
+            histograms.get(operation).record(nanos);
+        }
+    }
+
+    public RawdataClientLatencyHistogram.Snapshot snapshot(Operation operation) {
+        return total.get(operation).snapshot();
+    }
+
+    /**
+     * @return the topic snapshot, or null if nothing has been recorded for the topic
+     */
+    public RawdataClientLatencyHistogram.Snapshot snapshot(String topic, Operation operation) {
+        Histograms histograms = histogramsByTopic.get(topic);
+        return histograms == null ? null : histograms.get(operation).snapshot();
+    }
+
+    public Set<String> topics() {
+        return histogramsByTopic.keySet();
+    }
+
+    void openTopic(String topic) {
+        histogramsByTopic.computeIfAbsent(topic, t -> new Histograms());
+    }
+
+    void removeTopic(String topic) {
+        histogramsByTopic.remove(topic);
+    }
+
+    static class Histograms {
+        final Map<Operation, RawdataClientLatencyHistogram> histograms = new EnumMap<>(Operation.class);
+
+        Histograms() {
+            for (Operation operation : Operation.values()) {
+                histograms.put(operation, new RawdataClientLatencyHistogram());
+            }
+        }
+
+        RawdataClientLatencyHistogram get(Operation operation) {
+            return histograms.get(operation);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.descoped.dc.api.content.MetadataContent;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares equal header, correlation id and state nodes between manifest entries, so that the entries of a page that
+ * were fetched with the same headers hold one copy of them. The table is cleared when it reaches its maximum size.
+ * <p>
+ * Interned nodes are shared by many entries, and must not be modified.
+ */
+class RawdataClientManifestInterner {
+
+    private final int maxSize;
+    private final Map<JsonNode, JsonNode> nodes = new ConcurrentHashMap<>();
+
+    RawdataClientManifestInterner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    MetadataContent intern(MetadataContent metadataContent) {
+        ObjectNode elementNode = (ObjectNode) metadataContent.getElementNode();
+        List<String> containerFields = new ArrayList<>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = elementNode.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = it.next();
+            if (field.getValue().isContainerNode() && field.getValue().size() > 0) {
+                containerFields.add(field.getKey());
+            }
+        }
+        for (String fieldName : containerFields) {
+            JsonNode node = elementNode.get(fieldName);
+            JsonNode interned = intern(node);
+            if (interned != node) {
+                elementNode.replace(fieldName, interned);
+            }
+        }
+        return metadataContent;
+    }
+
+    JsonNode intern(JsonNode node) {
+        if (nodes.size() >= maxSize) {
+            nodes.clear();
+        }
+        JsonNode interned = nodes.putIfAbsent(node, node);
+        return interned == null ? node : interned;
+    }
+
+    int size() {
+        return nodes.size();
+    }
+}
@@ -0,0 +1,169 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.descoped.dc.api.content.MetadataContent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes the manifest of a position to manifest.json by streaming each {@link MetadataContent} element node
+ * through a JSON generator into a reusable per-thread buffer, without building an intermediate tree or String.
+ * <p>
+ * The compact format writes the fields that are equal for all entries once:
+ * {@code {"manifest-format":"compact","common":{...},"entries":[{...},...]}}, where each entry holds the fields that
+ * differ. {@link #read(byte[])} reads both formats.
+ */
+final class RawdataClientManifestWriter {
+
+    static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+    static final String FORMAT_FIELD = "manifest-format";
+    static final String COMPACT_FORMAT = "compact";
+    static final String COMMON_FIELD = "common";
+    static final String ENTRIES_FIELD = "entries";
+
+    // ObjectMapper and its JsonFactory are thread-safe once configured
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final ThreadLocal<ManifestBuffer> BUFFER = ThreadLocal.withInitial(ManifestBuffer::new);
+
+    private RawdataClientManifestWriter() {
+    }
+
+    static byte[] write(List<MetadataContent> manifest) {
+        return write(manifest, false);
+    }
+
+    static byte[] write(List<MetadataContent> manifest, boolean compact) {
+        ManifestBuffer buffer = BUFFER.get();
+        buffer.reset();
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(buffer)) {
+            if (compact) {
+                writeCompact(generator, manifest);
+            } else {
+                generator.writeStartArray();
+                for (MetadataContent metadataContent : manifest) {
+                    MAPPER.writeTree(generator, metadataContent.getElementNode());
+                }
+                generator.writeEndArray();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] manifestJson = buffer.toByteArray();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            // do not pin an oversized buffer to the thread
+            BUFFER.remove();
+        }
+        return manifestJson;
+    }
+
+    private static void writeCompact(JsonGenerator generator, List<MetadataContent> manifest) throws IOException {
+        Map<String, JsonNode> commonFields = commonFields(manifest);
+        generator.writeStartObject();
+        generator.writeStringField(FORMAT_FIELD, COMPACT_FORMAT);
+        generator.writeObjectFieldStart(COMMON_FIELD);
+        for (Map.Entry<String, JsonNode> field : commonFields.entrySet()) {
+            generator.writeFieldName(field.getKey());
+            MAPPER.writeTree(generator, field.getValue());
+        }
+        generator.writeEndObject();
+        generator.writeArrayFieldStart(ENTRIES_FIELD);
+        for (MetadataContent metadataContent : manifest) {
+            generator.writeStartObject();
+            for (Iterator<Map.Entry<String, JsonNode>> it = metadataContent.getElementNode().fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> field = it.next();
+                if (!commonFields.containsKey(field.getKey())) {
+                    generator.writeFieldName(field.getKey());
+                    MAPPER.writeTree(generator, field.getValue());
+                }
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    private static Map<String, JsonNode> commonFields(List<MetadataContent> manifest) {
+        Map<String, JsonNode> commonFields = new LinkedHashMap<>();
+        if (manifest.isEmpty()) {
+            return commonFields;
+        }
+        manifest.get(0).getElementNode().fields().forEachRemaining(field -> commonFields.put(field.getKey(), field.getValue()));
+        for (int i = 1; i < manifest.size() && !commonFields.isEmpty(); i++) {
+            JsonNode elementNode = manifest.get(i).getElementNode();
+            // interned nodes are compared by reference before they are compared by value
+            commonFields.entrySet().removeIf(field -> !field.getValue().equals(elementNode.get(field.getKey())));
+        }
+        return commonFields;
+    }
+
+    /**
+     * Reads manifest.json in array or compact format.
+     */
+    static List<MetadataContent> read(byte[] manifestJson) {
+        JsonNode manifest = readTree(manifestJson);
+        List<MetadataContent> metadataContents = new ArrayList<>(manifest.size());
+        for (JsonNode element : manifest) {
+            metadataContents.add(toMetadataContent((ObjectNode) element));
+        }
+        return metadataContents;
+    }
+
+    /**
+     * @return manifest.json in array format
+     */
+    static JsonNode readTree(byte[] manifestJson) {
+        try {
+            return expand(MAPPER.readTree(manifestJson));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MetadataContent toMetadataContent(ObjectNode element) {
+        MetadataContent metadataContent = new MetadataContent.Builder().build();
+        ObjectNode elementNode = (ObjectNode) metadataContent.getElementNode();
+        elementNode.removeAll();
+        elementNode.setAll(element);
+        return metadataContent;
+    }
+
+    /**
+     * @return the manifest in array format, or the manifest as is if it is not in compact format
+     */
+    static JsonNode expand(JsonNode manifest) {
+        if (!manifest.isObject() || !COMPACT_FORMAT.equals(manifest.path(FORMAT_FIELD).textValue())) {
+            return manifest;
+        }
+        ObjectNode commonFields = (ObjectNode) manifest.path(COMMON_FIELD);
+        ArrayNode expanded = MAPPER.createArrayNode();
+        for (JsonNode entry : manifest.path(ENTRIES_FIELD)) {
+            ObjectNode element = commonFields.deepCopy();
+            element.setAll((ObjectNode) entry);
+            expanded.add(element);
+        }
+        return expanded;
+    }
+
+    static class ManifestBuffer extends ByteArrayOutputStream {
+
+        ManifestBuffer() {
+            super(8192);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import de.huxhorn.sulky.ulid.ULID;
+import io.descoped.dc.api.content.ContentStreamBuffer;
+import io.descoped.dc.api.content.MetadataContent;
+import io.descoped.rawdata.api.RawdataMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A consumed message that decodes its content on demand. The manifest is decrypted and parsed when it is first
+ * needed, either by {@link #manifest()} or to look up the content-encoding of an entry, and each entry is decrypted
+ * and decompressed when it is first read. Entries that need no decoding are returned as stored, without a copy.
+ * <p>
+ * Without a decrypt function, encrypted entries and manifests are returned as stored, and so are the entries that
+ * an encrypted manifest describes.
+ */
+public class RawdataClientMessageBuffer implements ContentStreamBuffer {
+
+    private static final byte[] CONTENT_ENCODING_FIELD = ("\"" + RawdataClientContentStreamBuffer.CONTENT_ENCODING + "\"").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT_CHUNKS_FIELD = ("\"" + RawdataClientContentStreamBuffer.CONTENT_CHUNKS + "\"").getBytes(StandardCharsets.UTF_8);
+
+    private final RawdataMessage message;
+    private final Function<byte[], byte[]> tryDecryptContent;
+    private final Map<String, byte[]> decodedContent = new ConcurrentHashMap<>();
+    private volatile DecodedManifest decodedManifest;
+
+    /**
+     * @param tryDecryptContent function that decrypts entries and the manifest, or null to read them as stored
+     */
+    RawdataClientMessageBuffer(RawdataMessage message, Function<byte[], byte[]> tryDecryptContent) {
+        this.message = message;
+        this.tryDecryptContent = tryDecryptContent;
+    }
+
+    @Override
+    public ULID.Value ulid() {
+        return message.ulid();
+    }
+
+    @Override
+    public String position() {
+        return message.position();
+    }
+
+    @Override
+    public Set<String> keys() {
+        return message.data().keySet();
+    }
+
+    @Override
+    public byte[] get(String contentKey) {
+        byte[] content = message.data().get(contentKey);
+        if (content == null) {
+            return null;
+        }
+        if (tryDecryptContent == null && decodedManifest().contentEncodings.isEmpty()) {
+            return content;
+        }
+        return decodedContent.computeIfAbsent(contentKey, key -> decode(key, content));
+    }
+
+    /**
+     * @return a read-only view of an entry, which shares the stored bytes when the entry needs no decoding
+     */
+    public ByteBuffer getBuffer(String contentKey) {
+        byte[] content = get(contentKey);
+        return content == null ? null : ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+
+    /**
+     * Opens a stream of an entry, or of a document that was buffered from a stream and is stored in chunks. The chunks
+     * are decrypted one at a time as the stream is read, and are not kept by this buffer.
+     *
+     * @return the stream, or null if the message has no such entry or document
+     */
+    public InputStream openStream(String contentKey) {
+        List<String> chunkKeys = decodedManifest().contentChunks().get(contentKey);
+        if (chunkKeys == null) {
+            byte[] content = get(contentKey);
+            return content == null ? null : new ByteArrayInputStream(content);
+        }
+        Iterator<String> chunks = chunkKeys.iterator();
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                String chunkKey = chunks.next();
+                byte[] chunk = message.data().get(chunkKey);
+                if (chunk == null) {
+                    throw new IllegalStateException("Missing chunk " + chunkKey + " of document: " + contentKey);
+                }
+                return new ByteArrayInputStream(tryDecryptContent != null ? tryDecryptContent.apply(chunk) : chunk);
+            }
+        });
+    }
+
+    /**
+     * Decodes all entries. Prefer {@link #get(String)} for readers that do not need every entry.
+     */
+    @Override
+    public Map<String, byte[]> data() {
+        Map<String, byte[]> data = new LinkedHashMap<>();
+        for (String contentKey : keys()) {
+            data.put(contentKey, get(contentKey));
+        }
+        return Collections.unmodifiableMap(data);
+    }
+
+    /**
+     * @return the parsed manifest, or an empty list if the manifest is missing or cannot be read
+     */
+    @Override
+    public List<MetadataContent> manifest() {
+        return decodedManifest().entries();
+    }
+
+    /**
+     * @return number of stored bytes, without decoding any entry
+     */
+    public long encodedSize() {
+        long size = 0;
+        for (byte[] content : message.data().values()) {
+            size += content.length;
+        }
+        return size;
+    }
+
+    /**
+     * @return the entries as stored, without decrypting or decompressing them
+     */
+    Map<String, byte[]> storedData() {
+        return message.data();
+    }
+
+    private byte[] decode(String contentKey, byte[] content) {
+        if (RawdataClientContentStreamBuffer.MANIFEST_KEY.equals(contentKey)) {
+            return decryptedManifestJson();
+        }
+        byte[] decodedContent = tryDecryptContent != null ? tryDecryptContent.apply(content) : content;
+        String codecName = decodedManifest().contentEncodings.get(contentKey);
+        return codecName == null ? decodedContent : RawdataClientContentCodec.of(codecName).decompress(decodedContent);
+    }
+
+    private byte[] decryptedManifestJson() {
+        byte[] manifestJson = message.data().get(RawdataClientContentStreamBuffer.MANIFEST_KEY);
+        if (manifestJson == null || tryDecryptContent == null) {
+            return manifestJson;
+        }
+        return tryDecryptContent.apply(manifestJson);
+    }
+
+    private DecodedManifest decodedManifest() {
+        DecodedManifest manifest = decodedManifest;
+        if (manifest == null) {
+            synchronized (this) {
+                manifest = decodedManifest;
+                if (manifest == null) {
+                    manifest = new DecodedManifest(decryptedManifestJson());
+                    decodedManifest = manifest;
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private static boolean isJsonContainer(byte[] json) {
+        for (byte b : json) {
+            if (!Character.isWhitespace(b)) {
+                return b == '[' || b == '{';
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] source, byte[] target) {
+        outer:
+        for (int i = 0; i <= source.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (source[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    class DecodedManifest {
+        final byte[] manifestJson;
+        // content-encodings are looked up without building manifest entries
+        final Map<String, String> contentEncodings;
+        private List<MetadataContent> entries;
+        private Map<String, List<String>> contentChunks;
+
+        DecodedManifest(byte[] manifestJson) {
+            this.manifestJson = manifestJson != null && isJsonContainer(manifestJson) ? manifestJson : null;
+            this.contentEncodings = this.manifestJson != null && indexOf(this.manifestJson, CONTENT_ENCODING_FIELD) >= 0 ?
+                    contentEncodings(this.manifestJson) : Map.of();
+        }
+
+        synchronized List<MetadataContent> entries() {
+            if (entries == null) {
+                entries = readEntries();
+            }
+            return entries;
+        }
+
+        /**
+         * @return the chunk keys of streamed documents by content key
+         */
+        synchronized Map<String, List<String>> contentChunks() {
+            if (contentChunks == null) {
+                contentChunks = manifestJson != null && indexOf(manifestJson, CONTENT_CHUNKS_FIELD) >= 0 ? readContentChunks() : Map.of();
+            }
+            return contentChunks;
+        }
+
+        private Map<String, List<String>> readContentChunks() {
+            JsonNode manifest;
+            try {
+                manifest = RawdataClientManifestWriter.readTree(manifestJson);
+            } catch (RuntimeException e) {
+                return Map.of();
+            }
+            Map<String, List<String>> contentChunks = new LinkedHashMap<>();
+            for (JsonNode element : manifest) {
+                JsonNode chunksNode = element.path(RawdataClientContentStreamBuffer.CONTENT_CHUNKS);
+                String contentKey = element.path(RawdataClientContentStreamBuffer.CONTENT_KEY).textValue();
+                if (!chunksNode.isArray() || contentKey == null) {
+                    continue;
+                }
+                List<String> chunkKeys = new ArrayList<>(chunksNode.size());
+                chunksNode.forEach(chunkKey -> chunkKeys.add(chunkKey.asText()));
+                contentChunks.put(contentKey, chunkKeys);
+            }
+            return contentChunks;
+        }
+
+        private List<MetadataContent> readEntries() {
+            if (manifestJson == null) {
+                return new ArrayList<>();
+            }
+            try {
+                return RawdataClientManifestWriter.read(manifestJson);
+            } catch (RuntimeException e) {
+                return new ArrayList<>();
+            }
+        }
+
+        private Map<String, String> contentEncodings(byte[] manifestJson) {
+            JsonNode manifest;
+            try {
+                manifest = RawdataClientManifestWriter.readTree(manifestJson);
+            } catch (RuntimeException e) {
+                return Map.of();
+            }
+            List<String> contentKeys = new ArrayList<>(keys());
+            contentKeys.remove(RawdataClientContentStreamBuffer.MANIFEST_KEY);
+            Map<String, String> contentEncodings = new LinkedHashMap<>();
+            for (int i = 0; i < manifest.size(); i++) {
+                JsonNode element = manifest.get(i);
+                String codecName = element.path(RawdataClientContentStreamBuffer.CONTENT_ENCODING).textValue();
+                if (codecName == null) {
+                    continue;
+                }
+                // manifest entries are written in the same order as the entries they describe
+                String contentKey = element.hasNonNull(RawdataClientContentStreamBuffer.CONTENT_KEY) ?
+                        element.get(RawdataClientContentStreamBuffer.CONTENT_KEY).asText() :
+                        (i < contentKeys.size() ? contentKeys.get(i) : null);
+                if (contentKey != null) {
+                    contentEncodings.put(contentKey, codecName);
+                }
+            }
+            return contentEncodings;
+        }
+    }
+}
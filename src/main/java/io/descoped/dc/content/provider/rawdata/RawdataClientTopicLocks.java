@@ -0,0 +1,130 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reentrant per-topic locks. A topic lock is reference counted by the threads that hold or wait for it, and is
+ * evicted when the last of them releases it, so the table only holds locks of topics that are in use.
+ */
+public class RawdataClientTopicLocks {
+
+    private final Map<String, TopicLock> locks = new ConcurrentHashMap<>();
+    private final LongAdder acquisitionCount = new LongAdder();
+    private final LongAdder contendedAcquisitionCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    void lock(String topic) throws InterruptedException {
+        TopicLock topicLock = retain(topic);
+        try {
+            if (!topicLock.lock.tryLock()) {
+                contendedAcquisitionCount.increment();
+                long start = System.nanoTime();
+                try {
+                    topicLock.lock.lockInterruptibly();
+                } finally {
+                    waitNanos.add(System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            release(topic, topicLock);
+            throw e;
+        }
+        acquisitionCount.increment();
+    }
+
+    /**
+     * @return true if the lock was acquired within the timeout
+     */
+    boolean tryLock(String topic, long timeout, TimeUnit unit) throws InterruptedException {
+        TopicLock topicLock = retain(topic);
+        boolean locked;
+        try {
+            locked = topicLock.lock.tryLock();
+            if (!locked) {
+                contendedAcquisitionCount.increment();
+                long start = System.nanoTime();
+                try {
+                    locked = topicLock.lock.tryLock(timeout, unit);
+                } finally {
+                    waitNanos.add(System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            release(topic, topicLock);
+            throw e;
+        }
+        if (!locked) {
+            timeoutCount.increment();
+            release(topic, topicLock);
+            return false;
+        }
+        acquisitionCount.increment();
+        return true;
+    }
+
+    /**
+     * @throws IllegalMonitorStateException if the current thread does not hold the topic lock
+     */
+    void unlock(String topic) {
+        TopicLock topicLock = locks.get(topic);
+        if (topicLock == null || !topicLock.lock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("Topic is not locked by the current thread: " + topic);
+        }
+        topicLock.lock.unlock();
+        release(topic, topicLock);
+    }
+
+    private TopicLock retain(String topic) {
+        return locks.compute(topic, (key, topicLock) -> {
+            TopicLock retained = topicLock == null ? new TopicLock() : topicLock;
+            retained.references++;
+            return retained;
+        });
+    }
+
+    private void release(String topic, TopicLock topicLock) {
+        locks.computeIfPresent(topic, (key, current) -> {
+            if (current != topicLock) {
+                return current;
+            }
+            return --current.references == 0 ? null : current;
+        });
+    }
+
+    /**
+     * @return number of topics that currently have a lock holder or waiter
+     */
+    public int activeLockCount() {
+        return locks.size();
+    }
+
+    public long acquisitionCount() {
+        return acquisitionCount.sum();
+    }
+
+    /**
+     * @return number of lock attempts that found the topic locked by another thread
+     */
+    public long contendedAcquisitionCount() {
+        return contendedAcquisitionCount.sum();
+    }
+
+    public long timeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    public long waitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    static class TopicLock {
+        final ReentrantLock lock = new ReentrantLock();
+        // guarded by the map entry
+        int references;
+    }
+}
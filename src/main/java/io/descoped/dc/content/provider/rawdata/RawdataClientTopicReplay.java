@@ -0,0 +1,422 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import de.huxhorn.sulky.ulid.ULID;
+import io.descoped.dc.api.content.ContentStreamBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Copies or replays a topic in parallel. The ulid time range of the topic is split into partitions, and each
+ * partition is read by its own consumer, which seeks to the start of the partition and stops at its end. Partitions
+ * run on a fork-join pool.
+ * <p>
+ * Messages are either copied to a target topic, as stored and with their ulid, or passed to a sink. The sink is
+ * called concurrently by the partitions. Messages within a partition are handled in topic order, but partitions are
+ * not ordered with respect to each other.
+ * <p>
+ * With a checkpoint file, the last handled ulid of each partition is recorded after every batch, and a replay that
+ * is run again with the same file resumes where it stopped.
+ */
+public class RawdataClientTopicReplay {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientTopicReplay.class);
+
+    private final RawdataClientContentStream source;
+    private final String topic;
+    private final RawdataClientContentStream target;
+    private final String targetTopic;
+    private final Consumer<ContentStreamBuffer> sink;
+    private final long fromTimestamp;
+    private final long toTimestamp;
+    private final int partitions;
+    private final int parallelism;
+    private final int batchSize;
+    private final Duration idleTimeout;
+    private final RateLimiter rateLimiter;
+    private final Path checkpointFile;
+    private final LongAdder messageCount = new LongAdder();
+
+    private RawdataClientTopicReplay(Builder builder) {
+        this.source = builder.source;
+        this.topic = builder.topic;
+        this.target = builder.target;
+        this.targetTopic = builder.targetTopic;
+        this.sink = builder.sink;
+        this.fromTimestamp = builder.fromTimestamp;
+        this.toTimestamp = builder.toTimestamp;
+        this.partitions = builder.partitions;
+        this.parallelism = builder.parallelism;
+        this.batchSize = builder.batchSize;
+        this.idleTimeout = builder.idleTimeout;
+        this.rateLimiter = builder.maxMessagesPerSecond > 0 ? new RateLimiter(builder.maxMessagesPerSecond) : null;
+        this.checkpointFile = builder.checkpointFile;
+    }
+
+    public static Builder builder(RawdataClientContentStream source, String topic) {
+        return new Builder(source, topic);
+    }
+
+    /**
+     * @return number of messages copied or replayed so far by this replay
+     */
+    public long messageCount() {
+        return messageCount.sum();
+    }
+
+    /**
+     * Runs all partitions that are not done, and waits for them to complete.
+     *
+     * @return number of messages copied or replayed by this run
+     */
+    public long run() throws InterruptedException {
+        long start = messageCount.sum();
+        Checkpoints checkpoints = checkpointFile != null && Files.exists(checkpointFile) ? Checkpoints.read(checkpointFile) : newCheckpoints();
+        if (checkpoints == null) {
+            return 0; // empty topic
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Callable<Long>> tasks = new ArrayList<>();
+            for (int partition = 0; partition < checkpoints.partitions; partition++) {
+                int p = partition;
+                tasks.add(() -> replayPartition(checkpoints, p));
+            }
+            for (Future<Long> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return messageCount.sum() - start;
+    }
+
+    private Checkpoints newCheckpoints() throws InterruptedException {
+        long from = fromTimestamp;
+        long to = toTimestamp;
+        if (from < 0) {
+            try (RawdataClientContentStreamConsumer consumer = source.newConsumer(topic, null, 0)) {
+                ContentStreamBuffer first = consumer.receive((int) idleTimeout.toMillis(), TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    return null;
+                }
+                from = first.ulid().timestamp();
+            } catch (InterruptedException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (to < 0) {
+            ContentStreamBuffer last = source.lastMessage(topic);
+            if (last == null) {
+                return null;
+            }
+            // messages that are produced during the replay are not included
+            to = last.ulid().timestamp() + 1;
+        }
+        if (to <= from) {
+            throw new IllegalArgumentException("Replay range is empty: [" + from + ", " + to + ")");
+        }
+        int partitionCount = (int) Math.min(partitions, to - from);
+        Checkpoints checkpoints = new Checkpoints(from, to, partitionCount);
+        if (checkpointFile != null) {
+            checkpoints.write(checkpointFile);
+        }
+        return checkpoints;
+    }
+
+    private long replayPartition(Checkpoints checkpoints, int partition) throws Exception {
+        if (checkpoints.done[partition]) {
+            return 0;
+        }
+        long span = checkpoints.to - checkpoints.from;
+        long partitionFrom = checkpoints.from + span * partition / checkpoints.partitions;
+        long partitionTo = checkpoints.from + span * (partition + 1) / checkpoints.partitions;
+        ULID.Value lastUlid = checkpoints.lastUlid[partition];
+        long count = 0;
+        try (RawdataClientContentStreamConsumer consumer = source.newConsumer(topic, null, source.configuration().consumerPrefetchSize());
+             RawdataClientContentStreamProducer producer = target != null ? target.newProducer(targetTopic) : null) {
+            consumer.seek(lastUlid != null ? lastUlid.timestamp() : partitionFrom);
+            List<String> positions = new ArrayList<>(batchSize);
+            ULID.Value batchUlid = null;
+            ContentStreamBuffer buffer;
+            while ((buffer = consumer.receive((int) idleTimeout.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+                if (buffer.ulid().timestamp() >= partitionTo) {
+                    break;
+                }
+                if (lastUlid != null && buffer.ulid().compareTo(lastUlid) <= 0) {
+                    continue; // handled before the checkpoint
+                }
+                if (rateLimiter != null) {
+                    rateLimiter.acquire();
+                }
+                if (producer != null) {
+                    producer.copy(buffer);
+                    positions.add(buffer.position());
+                } else {
+                    sink.accept(buffer);
+                }
+                batchUlid = buffer.ulid();
+                count++;
+                messageCount.increment();
+                if (count % batchSize == 0) {
+                    commit(producer, positions, checkpoints, partition, batchUlid, false);
+                }
+            }
+            commit(producer, positions, checkpoints, partition, batchUlid, true);
+        }
+        LOG.debug("Replayed partition {} [{}, {}) of topic {}: {} messages", partition, partitionFrom, partitionTo, topic, count);
+        return count;
+    }
+
+    private void commit(RawdataClientContentStreamProducer producer, List<String> positions, Checkpoints checkpoints, int partition, ULID.Value ulid, boolean done) {
+        if (producer != null && !positions.isEmpty()) {
+            // the checkpoint is recorded when the backend has acknowledged the batch
+            CompletableFuture<Void> future = producer.publishAsync(positions.toArray(new String[0]));
+            if (producer.isBatching()) {
+                producer.flush();
+            }
+            future.join();
+            positions.clear();
+        }
+        checkpoints.update(partition, ulid, done);
+        if (checkpointFile != null) {
+            checkpoints.write(checkpointFile);
+        }
+    }
+
+    public static class Builder {
+        private final RawdataClientContentStream source;
+        private final String topic;
+        private RawdataClientContentStream target;
+        private String targetTopic;
+        private Consumer<ContentStreamBuffer> sink;
+        private long fromTimestamp = -1;
+        private long toTimestamp = -1;
+        private int partitions = Runtime.getRuntime().availableProcessors();
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private int batchSize = 500;
+        private Duration idleTimeout = Duration.ofSeconds(1);
+        private double maxMessagesPerSecond;
+        private Path checkpointFile;
+
+        Builder(RawdataClientContentStream source, String topic) {
+            this.source = Objects.requireNonNull(source);
+            this.topic = Objects.requireNonNull(topic);
+        }
+
+        /**
+         * Copies messages to a topic of a content stream, which may be the source stream.
+         */
+        public Builder target(RawdataClientContentStream target, String targetTopic) {
+            this.target = Objects.requireNonNull(target);
+            this.targetTopic = Objects.requireNonNull(targetTopic);
+            return this;
+        }
+
+        /**
+         * Passes messages to a sink instead of copying them. The sink must be thread-safe.
+         */
+        public Builder sink(Consumer<ContentStreamBuffer> sink) {
+            this.sink = Objects.requireNonNull(sink);
+            return this;
+        }
+
+        /**
+         * Limits the replay to messages with a ulid timestamp in [fromTimestamp, toTimestamp). By default, the range
+         * spans from the first to the last message of the topic when the replay is run.
+         */
+        public Builder range(long fromTimestamp, long toTimestamp) {
+            if (fromTimestamp < 0 || toTimestamp <= fromTimestamp) {
+                throw new IllegalArgumentException("Invalid replay range: [" + fromTimestamp + ", " + toTimestamp + ")");
+            }
+            this.fromTimestamp = fromTimestamp;
+            this.toTimestamp = toTimestamp;
+            return this;
+        }
+
+        public Builder partitions(int partitions) {
+            if (partitions < 1) {
+                throw new IllegalArgumentException("partitions must be greater than zero: " + partitions);
+            }
+            this.partitions = partitions;
+            return this;
+        }
+
+        public Builder parallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be greater than zero: " + parallelism);
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * @param batchSize number of messages that are published, and checkpointed, together
+         */
+        public Builder batchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batchSize must be greater than zero: " + batchSize);
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * @param idleTimeout time a partition waits for the next message before it has reached the end of the topic
+         */
+        public Builder idleTimeout(Duration idleTimeout) {
+            this.idleTimeout = Objects.requireNonNull(idleTimeout);
+            return this;
+        }
+
+        /**
+         * @param maxMessagesPerSecond rate limit of all partitions together, where 0 disables the limit
+         */
+        public Builder maxMessagesPerSecond(double maxMessagesPerSecond) {
+            if (maxMessagesPerSecond < 0) {
+                throw new IllegalArgumentException("maxMessagesPerSecond must not be negative: " + maxMessagesPerSecond);
+            }
+            this.maxMessagesPerSecond = maxMessagesPerSecond;
+            return this;
+        }
+
+        /**
+         * Records the progress of each partition in a file. If the file exists, its range and partitions are used
+         * and the replay resumes after the last recorded message of each partition.
+         */
+        public Builder checkpointFile(Path checkpointFile) {
+            this.checkpointFile = checkpointFile;
+            return this;
+        }
+
+        public RawdataClientTopicReplay build() {
+            if ((target == null) == (sink == null)) {
+                throw new IllegalStateException("Replay requires either a target topic or a sink");
+            }
+            return new RawdataClientTopicReplay(this);
+        }
+    }
+
+    static class Checkpoints {
+        final long from;
+        final long to;
+        final int partitions;
+        final ULID.Value[] lastUlid;
+        final boolean[] done;
+
+        Checkpoints(long from, long to, int partitions) {
+            this.from = from;
+            this.to = to;
+            this.partitions = partitions;
+            this.lastUlid = new ULID.Value[partitions];
+            this.done = new boolean[partitions];
+        }
+
+        synchronized void update(int partition, ULID.Value ulid, boolean partitionDone) {
+            if (ulid != null) {
+                lastUlid[partition] = ulid;
+            }
+            done[partition] |= partitionDone;
+        }
+
+        synchronized void write(Path file) {
+            Properties properties = new Properties();
+            properties.setProperty("from", Long.toString(from));
+            properties.setProperty("to", Long.toString(to));
+            properties.setProperty("partitions", Integer.toString(partitions));
+            for (int partition = 0; partition < partitions; partition++) {
+                if (lastUlid[partition] != null) {
+                    properties.setProperty("partition." + partition + ".ulid", lastUlid[partition].toString());
+                }
+                properties.setProperty("partition." + partition + ".done", Boolean.toString(done[partition]));
+            }
+            // replace the checkpoint file atomically, so that a crash leaves the previous checkpoint
+            Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tempFile)) {
+                    properties.store(out, null);
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        static Checkpoints read(Path file) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Checkpoints checkpoints = new Checkpoints(Long.parseLong(properties.getProperty("from")), Long.parseLong(properties.getProperty("to")),
+                    Integer.parseInt(properties.getProperty("partitions")));
+            for (int partition = 0; partition < checkpoints.partitions; partition++) {
+                String ulid = properties.getProperty("partition." + partition + ".ulid");
+                checkpoints.lastUlid[partition] = ulid != null ? ULID.parseULID(ulid) : null;
+                checkpoints.done[partition] = Boolean.parseBoolean(properties.getProperty("partition." + partition + ".done"));
+            }
+            return checkpoints;
+        }
+    }
+
+    /**
+     * Spaces permits evenly at the configured rate, shared by all partitions.
+     */
+    static class RateLimiter {
+        private final long intervalNanos;
+        private long nextPermitNanos = System.nanoTime();
+
+        RateLimiter(double permitsPerSecond) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        }
+
+        void acquire() throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (nextPermitNanos < now) {
+                    nextPermitNanos = now;
+                }
+                waitNanos = nextPermitNanos - now;
+                nextPermitNanos += intervalNanos;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
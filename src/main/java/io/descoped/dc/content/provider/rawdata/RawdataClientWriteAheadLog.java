@@ -0,0 +1,398 @@
+package io.descoped.dc.content.provider.rawdata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped log of buffered entries with one segment per topic. Entries are appended when they
+ * are buffered, and a position is marked as published when the backend has acknowledged it. A segment is truncated
+ * when all positions it holds have been published, and is compacted to the entries of unpublished positions when
+ * published records make up most of it, so that a topic that always has a position in flight does not grow its
+ * segment without bound. {@link #replay()} returns the entries of unpublished positions after a restart.
+ * <p>
+ * A record is laid out as {@code [length][crc32][payload]}. The length is written last, so a record that was torn by
+ * a crash is ignored on replay. Appends survive a process crash once they are in the mapped pages; {@code sync}
+ * forces them to the storage device as well.
+ * <p>
+ * Each buffer record tells whether it was encrypted with the key of the content store, so that a segment can hold
+ * records of stores with and without a key. A log without a key refuses to replay an encrypted record, instead of
+ * returning content it cannot read.
+ */
+class RawdataClientWriteAheadLog implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RawdataClientWriteAheadLog.class);
+
+    static final String SEGMENT_SUFFIX = ".wal";
+    static final byte BUFFER_RECORD = 1;
+    static final byte PUBLISH_RECORD = 2;
+    static final byte ENCRYPTED = 1;
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean sync;
+    private final boolean encrypted;
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    /**
+     * @param encrypted true if the content store has an encryption key to decrypt replayed records with
+     */
+    RawdataClientWriteAheadLog(Path directory, int segmentSize, boolean sync, boolean encrypted) {
+        if (segmentSize < RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("rawdata.wal.segment-size is too small: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        this.encrypted = encrypted;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param flags {@link #ENCRYPTED} if the manifest and content were encrypted with the key of the content store, otherwise 0
+     */
+    void append(String topic, String position, String contentKey, byte flags, byte[] manifestJson, byte[] content) {
+        byte[] positionBytes = position.getBytes(StandardCharsets.UTF_8);
+        byte[] contentKeyBytes = contentKey.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + 4 * Integer.BYTES + positionBytes.length + contentKeyBytes.length + manifestJson.length + content.length);
+        payload.put(BUFFER_RECORD).put(flags);
+        payload.putInt(positionBytes.length).put(positionBytes);
+        payload.putInt(contentKeyBytes.length).put(contentKeyBytes);
+        payload.putInt(manifestJson.length).put(manifestJson);
+        payload.putInt(content.length).put(content);
+        segment(topic).append(position, payload.array());
+    }
+
+    /**
+     * Marks positions of a topic as published. The segment is truncated when no unpublished positions remain, and
+     * compacted when most of it is published.
+     */
+    void published(String topic, String... positions) {
+        Segment segment = segments.get(topic);
+        if (segment != null) {
+            segment.published(positions);
+        }
+    }
+
+    private Segment segment(String topic) {
+        return segments.computeIfAbsent(topic, t -> new Segment(segmentFile(t), segmentSize, sync));
+    }
+
+    private Path segmentFile(String topic) {
+        return directory.resolve(Base64.getUrlEncoder().withoutPadding().encodeToString(topic.getBytes(StandardCharsets.UTF_8)) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Reads the segments in the log directory and returns the entries of unpublished positions in append order.
+     * Each segment is compacted to hold only those entries. Must be called before entries are appended.
+     *
+     * @throws IllegalStateException if an entry is encrypted and this log has no encryption key
+     */
+    List<Entry> replay() {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path segmentFile : segmentFiles) {
+                String fileName = segmentFile.getFileName().toString();
+                String topic = new String(Base64.getUrlDecoder().decode(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())), StandardCharsets.UTF_8);
+                entries.addAll(replaySegment(topic, segmentFile));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return entries;
+    }
+
+    private List<Entry> replaySegment(String topic, Path segmentFile) throws IOException {
+        Map<String, List<byte[]>> payloadsByPosition = new LinkedHashMap<>();
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (mapped.remaining() >= RECORD_HEADER_SIZE) {
+                int length = mapped.getInt();
+                int checksum = mapped.getInt();
+                if (length <= 0 || length > mapped.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                mapped.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("Ignoring torn record at the end of write-ahead log segment: {}", segmentFile);
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                byte type = record.get();
+                if (type == BUFFER_RECORD) {
+                    if ((record.get() & ENCRYPTED) != 0 && !encrypted) {
+                        throw new IllegalStateException("Write-ahead log segment of topic '" + topic + "' holds encrypted entries, and the content store has no encryption key: " + segmentFile);
+                    }
+                    payloadsByPosition.computeIfAbsent(readString(record), p -> new ArrayList<>()).add(payload);
+                } else if (type == PUBLISH_RECORD) {
+                    payloadsByPosition.remove(readString(record));
+                }
+            }
+        }
+
+        // rewrite the segment with the entries of unpublished positions, and replace the old segment atomically
+        Path compactedFile = compactedFile(segmentFile);
+        Files.deleteIfExists(compactedFile);
+        Segment compacted = new Segment(compactedFile, segmentSize, sync);
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, List<byte[]>> position : payloadsByPosition.entrySet()) {
+            for (byte[] payload : position.getValue()) {
+                compacted.append(position.getKey(), payload);
+                entries.add(Entry.of(topic, payload));
+            }
+        }
+        compacted.close();
+        Files.move(compactedFile, segmentFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Segment segment = new Segment(segmentFile, segmentSize, sync);
+        segment.recover(compacted.unpublishedBytes, compacted.writeOffset);
+        segments.put(topic, segment);
+        return entries;
+    }
+
+    private static Path compactedFile(Path segmentFile) {
+        return segmentFile.resolveSibling(segmentFile.getFileName() + ".compact");
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        return new String(readBytes(buffer), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    static class Entry {
+        final String topic;
+        final String position;
+        final String contentKey;
+        final boolean encrypted;
+        final byte[] manifestJson;
+        final byte[] content;
+
+        Entry(String topic, String position, String contentKey, boolean encrypted, byte[] manifestJson, byte[] content) {
+            this.topic = topic;
+            this.position = position;
+            this.contentKey = contentKey;
+            this.encrypted = encrypted;
+            this.manifestJson = manifestJson;
+            this.content = content;
+        }
+
+        static Entry of(String topic, byte[] payload) {
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            record.get(); // type
+            boolean encrypted = (record.get() & ENCRYPTED) != 0;
+            String position = readString(record);
+            String contentKey = readString(record);
+            byte[] manifestJson = readBytes(record);
+            byte[] content = readBytes(record);
+            return new Entry(topic, position, contentKey, encrypted, manifestJson, content);
+        }
+    }
+
+    static class Segment {
+        private static final byte[] ZEROS = new byte[8192];
+
+        final Path file;
+        final int segmentSize;
+        final boolean sync;
+        // record bytes of the buffer records of each unpublished position
+        final Map<String, Long> unpublishedBytes = new LinkedHashMap<>();
+        long liveBytes;
+        FileChannel channel;
+        MappedByteBuffer mapped;
+        int writeOffset;
+
+        Segment(Path file, int segmentSize, boolean sync) {
+            this.file = file;
+            this.segmentSize = segmentSize;
+            this.sync = sync;
+            open();
+        }
+
+        private void open() {
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        synchronized void recover(Map<String, Long> positionBytes, int offset) {
+            positionBytes.forEach((position, bytes) -> {
+                unpublishedBytes.merge(position, bytes, Long::sum);
+                liveBytes += bytes;
+            });
+            writeOffset = offset;
+        }
+
+        synchronized void append(String position, byte[] payload) {
+            long recordSize = RECORD_HEADER_SIZE + payload.length;
+            unpublishedBytes.merge(position, recordSize, Long::sum);
+            liveBytes += recordSize;
+            write(payload);
+        }
+
+        synchronized void published(String... positions) {
+            boolean changed = false;
+            for (String position : positions) {
+                Long bytes = unpublishedBytes.remove(position);
+                if (bytes != null) {
+                    liveBytes -= bytes;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return;
+            }
+            if (unpublishedBytes.isEmpty()) {
+                truncate();
+                return;
+            }
+            for (String position : positions) {
+                byte[] positionBytes = position.getBytes(StandardCharsets.UTF_8);
+                write(ByteBuffer.allocate(1 + Integer.BYTES + positionBytes.length)
+                        .put(PUBLISH_RECORD).putInt(positionBytes.length).put(positionBytes).array());
+            }
+            // a position that is buffered before the previous one is published keeps the segment from being truncated
+            if (writeOffset >= segmentSize && writeOffset - liveBytes >= liveBytes) {
+                compact();
+            }
+        }
+
+        /**
+         * Rewrites the segment with the buffer records of unpublished positions, and replaces it atomically, so that
+         * a crash during compaction leaves either the old or the compacted segment.
+         */
+        // guarded by this
+        private void compact() {
+            Path compactedFile = compactedFile(file);
+            try {
+                Files.deleteIfExists(compactedFile);
+                Segment compacted = new Segment(compactedFile, segmentSize, sync);
+                int offset = 0;
+                while (offset < writeOffset) {
+                    int length = mapped.getInt(offset);
+                    byte[] payload = new byte[length];
+                    mapped.get(offset + RECORD_HEADER_SIZE, payload);
+                    offset += RECORD_HEADER_SIZE + length;
+                    ByteBuffer record = ByteBuffer.wrap(payload);
+                    if (record.get() != BUFFER_RECORD) {
+                        continue;
+                    }
+                    record.get(); // flags
+                    String position = readString(record);
+                    if (unpublishedBytes.containsKey(position)) {
+                        compacted.write(payload);
+                    }
+                }
+                compacted.close();
+                channel.close();
+                Files.move(compactedFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                writeOffset = compacted.writeOffset;
+            } catch (IOException e) {
+                // the segment is still valid, and compaction is retried with the next publish
+                LOG.warn("Unable to compact write-ahead log segment: {}", file, e);
+            } finally {
+                if (!channel.isOpen()) {
+                    open();
+                }
+            }
+        }
+
+        // guarded by this
+        private void write(byte[] payload) {
+            int recordSize = RECORD_HEADER_SIZE + payload.length;
+            ensureCapacity(writeOffset + recordSize + Integer.BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            mapped.putInt(writeOffset + Integer.BYTES, (int) crc.getValue());
+            mapped.put(writeOffset + RECORD_HEADER_SIZE, payload);
+            // the length makes the record visible to replay
+            mapped.putInt(writeOffset, payload.length);
+            writeOffset += recordSize;
+            if (sync) {
+                mapped.force();
+            }
+        }
+
+        // guarded by this
+        private void ensureCapacity(long capacity) {
+            if (capacity <= mapped.capacity()) {
+                return;
+            }
+            long newCapacity = mapped.capacity();
+            while (newCapacity < capacity) {
+                newCapacity *= 2;
+            }
+            if (newCapacity > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Write-ahead log segment is full: " + file);
+            }
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // guarded by this
+        private void truncate() {
+            // zero the used region, so that records of the previous generation cannot be read back
+            for (int offset = 0; offset < writeOffset; offset += ZEROS.length) {
+                mapped.put(offset, ZEROS, 0, Math.min(ZEROS.length, writeOffset - offset));
+            }
+            writeOffset = 0;
+            if (sync) {
+                mapped.force();
+            }
+        }
+
+        synchronized void close() {
+            try {
+                mapped.force();
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close write-ahead log segment: {}", file, e);
+            }
+        }
+    }
+}
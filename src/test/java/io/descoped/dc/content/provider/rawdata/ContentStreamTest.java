@@ -1,6 +1,9 @@
 package io.descoped.dc.content.provider.rawdata;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.descoped.dc.api.CorrelationIds;
+import io.descoped.dc.api.content.ContentStateKey;
 import io.descoped.dc.api.content.ContentStore;
 import io.descoped.dc.api.content.ContentStoreInitializer;
 import io.descoped.dc.api.content.ContentStream;
@@ -14,15 +17,56 @@ import io.descoped.encryption.client.Algorithm;
 import io.descoped.encryption.client.EncryptionClient;
 import io.descoped.rawdata.api.RawdataClient;
 import io.descoped.rawdata.api.RawdataClientInitializer;
+import io.descoped.rawdata.api.RawdataMessage;
+import io.descoped.rawdata.api.RawdataProducer;
 import io.descoped.service.provider.api.ProviderConfigurator;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Pipe;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ContentStreamTest {
 
@@ -59,6 +103,1090 @@ public class ContentStreamTest {
         producer.publish("1");
     }
 
+    @Test
+    public void thatAsyncPublishWritesPositionsInOrder() throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.publish.async", "true",
+                        "rawdata.publish.async.max-in-flight", "2"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        for (int i = 1; i <= 10; i++) {
+            contentStore.bufferDocument("async-topic", String.valueOf(i), "entry", ("PAYLOAD " + i).getBytes(), httpRequestInfo);
+            contentStore.publish("async-topic", String.valueOf(i));
+        }
+        // closing the producer waits for in-flight publishes
+        contentStore.contentStream().closeAndRemoveProducer("async-topic");
+
+        try (ContentStreamConsumer consumer = contentStore.contentStream().consumer("async-topic")) {
+            for (int i = 1; i <= 10; i++) {
+                ContentStreamBuffer message = consumer.receive(1, TimeUnit.SECONDS);
+                assertNotNull(message);
+                assertEquals(String.valueOf(i), message.position());
+            }
+        }
+        contentStore.close();
+    }
+
+    @Test
+    public void thatFailedAsyncPublishFailsOnlyItsPositionsAndIsThrownOnce() throws Exception {
+        Set<String> failingPositions = ConcurrentHashMap.newKeySet();
+        failingPositions.add("2");
+        failingPositions.add("5");
+        RawdataClient client = interceptPublish(newMemoryClient(), "failing-topic", messages -> {
+            for (RawdataMessage message : messages) {
+                if (failingPositions.contains(message.position())) {
+                    throw new IllegalStateException("backend failure at position " + message.position());
+                }
+            }
+        });
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client, null, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.publish.async", "true",
+                "rawdata.publish.async.max-in-flight", "4")));
+        RawdataClientContentStreamProducer producer = contentStream.producer("failing-topic");
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            producer.produce(producer.builder().position(String.valueOf(i)).put("the-payload", ("Hello " + i).getBytes(StandardCharsets.UTF_8)));
+            futures.add(producer.publishAsync(String.valueOf(i)));
+        }
+        // the write queued behind the failed write lands
+        futures.get(0).get(1, TimeUnit.SECONDS);
+        assertThrows(ExecutionException.class, () -> futures.get(1).get(1, TimeUnit.SECONDS));
+        futures.get(2).get(1, TimeUnit.SECONDS);
+
+        // the failure is thrown by the next publish, with the positions that were not written
+        producer.produce(producer.builder().position("4").put("the-payload", "Hello 4".getBytes(StandardCharsets.UTF_8)));
+        RuntimeException failure = assertThrows(RuntimeException.class, () -> producer.publishAsync("4"));
+        assertTrue(failure.getMessage().endsWith("positions: [2]"), failure.getMessage());
+        assertEquals("backend failure at position 2", failure.getCause().getMessage());
+        // and only once
+        producer.publishAsync("4").get(1, TimeUnit.SECONDS);
+
+        // a failure that is not followed by another publish is thrown by close
+        producer.produce(producer.builder().position("5").put("the-payload", "Hello 5".getBytes(StandardCharsets.UTF_8)));
+        CompletableFuture<Void> failedPublish = producer.publishAsync("5");
+        assertThrows(ExecutionException.class, () -> failedPublish.get(1, TimeUnit.SECONDS));
+        RuntimeException closeFailure = assertThrows(RuntimeException.class, producer::close);
+        assertTrue(closeFailure.getMessage().endsWith("positions: [5]"), closeFailure.getMessage());
+
+        try (ContentStreamConsumer consumer = contentStream.consumer("failing-topic")) {
+            for (String position : List.of("1", "3", "4")) {
+                ContentStreamBuffer message = consumer.receive(1, TimeUnit.SECONDS);
+                assertEquals(position, message.position());
+            }
+            assertNull(consumer.receive(100, TimeUnit.MILLISECONDS));
+        }
+        contentStream.close();
+    }
+
+    @Test
+    public void thatBatchPublishFlushesPendingMessagesOnClose() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client, null, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.publish.batch", "true",
+                "rawdata.publish.batch.max-messages", "100",
+                "rawdata.publish.batch.linger-ms", "60000")));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try (RawdataClientContentStreamProducer producer = contentStream.producer("batch-topic")) {
+            for (int i = 1; i <= 3; i++) {
+                producer.produce(producer.builder().position(String.valueOf(i))
+                        .put("the-payload", ("Hello " + i).getBytes(StandardCharsets.UTF_8)));
+                futures.add(producer.publishAsync(String.valueOf(i)));
+            }
+            assertNull(contentStream.lastPosition("batch-topic"));
+            assertFalse(futures.get(0).isDone());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(1, TimeUnit.SECONDS);
+        assertEquals("3", contentStream.lastPosition("batch-topic"));
+        contentStream.close();
+    }
+
+    @Test
+    public void thatSlowTopicDoesNotDelayLingerFlushesOfOtherTopics() throws Exception {
+        CountDownLatch slowWriteStarted = new CountDownLatch(1);
+        CountDownLatch slowWriteReleased = new CountDownLatch(1);
+        RawdataClient client = interceptPublish(newMemoryClient(), "slow-topic", messages -> {
+            slowWriteStarted.countDown();
+            try {
+                slowWriteReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client, null, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.publish.batch", "true",
+                "rawdata.publish.batch.linger-ms", "20")));
+        RawdataClientContentStreamProducer slowProducer = contentStream.producer("slow-topic");
+        slowProducer.produce(slowProducer.builder().position("1").put("the-payload", "slow".getBytes(StandardCharsets.UTF_8)));
+        CompletableFuture<Void> slowPublish = slowProducer.publishAsync("1");
+        assertTrue(slowWriteStarted.await(1, TimeUnit.SECONDS));
+
+        // the linger flush of another topic is not blocked by the pending write of the slow topic
+        RawdataClientContentStreamProducer fastProducer = contentStream.producer("fast-topic");
+        fastProducer.produce(fastProducer.builder().position("1").put("the-payload", "fast".getBytes(StandardCharsets.UTF_8)));
+        fastProducer.publishAsync("1").get(1, TimeUnit.SECONDS);
+        assertEquals("1", contentStream.lastPosition("fast-topic"));
+
+        // the slow topic keeps accepting appends while its batch is written
+        slowProducer.produce(slowProducer.builder().position("2").put("the-payload", "slow".getBytes(StandardCharsets.UTF_8)));
+        CompletableFuture<Void> nextSlowPublish = slowProducer.publishAsync("2");
+        assertFalse(slowPublish.isDone());
+        slowWriteReleased.countDown();
+        CompletableFuture.allOf(slowPublish, nextSlowPublish).get(1, TimeUnit.SECONDS);
+        assertEquals("2", contentStream.lastPosition("slow-topic"));
+        contentStream.close();
+    }
+
+    @Test
+    public void thatParallelEncryptionStageEncryptsAllEntries() throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.encryption.key", "password",
+                        "rawdata.encryption.salt", "salt",
+                        "rawdata.encryption.stage", "parallel",
+                        "rawdata.encryption.stage.threads", "2"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        for (int i = 1; i <= 3; i++) {
+            contentStore.bufferDocument("encrypted-topic", "1", "entry-" + i, ("PAYLOAD " + i).getBytes(), httpRequestInfo);
+        }
+        contentStore.publish("encrypted-topic", "1");
+
+        EncryptionClient encryptionClient = new EncryptionClient(Algorithm.AES256);
+        byte[] secretKey = encryptionClient.generateSecretKey("password".toCharArray(), "salt".getBytes()).getEncoded();
+        ContentStreamBuffer message = contentStore.contentStream().lastMessage("encrypted-topic");
+        assertNotNull(message);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals("PAYLOAD " + i, new String(encryptionClient.decrypt(secretKey, message.get("entry-" + i))));
+        }
+        contentStore.close();
+    }
+
+    @Test
+    public void thatEncryptionKeyCacheReusesAndZeroesDerivedKeys() throws Exception {
+        RawdataClientEncryptionKeyCache keyCache = new RawdataClientEncryptionKeyCache();
+        EncryptionClient encryptionClient = new EncryptionClient(Algorithm.AES256);
+        AtomicInteger derivations = new AtomicInteger();
+        BiFunction<char[], byte[], byte[]> deriveKey = (key, salt) -> {
+            derivations.incrementAndGet();
+            return encryptionClient.generateSecretKey(key, salt).getEncoded();
+        };
+
+        RawdataClientEncryptionKeyCache.Lease first = keyCache.acquire("password".toCharArray(), "salt".getBytes(), deriveKey, 0);
+        RawdataClientEncryptionKeyCache.Lease second = keyCache.acquire("password".toCharArray(), "salt".getBytes(), deriveKey, 0);
+        assertEquals(1, derivations.get());
+        assertSame(first.secretKey(), second.secretKey());
+
+        byte[] secretKey = first.secretKey();
+        first.close();
+        assertEquals(1, keyCache.size());
+        second.close();
+        assertEquals(0, keyCache.size());
+        assertArrayEquals(new byte[secretKey.length], secretKey);
+        // keys are zeroed on close unless a retention is configured
+        assertEquals(0, RawdataClientContentStreamConfiguration.defaults().encryptionKeyRetentionMillis());
+
+        // a retained key is zeroed when the retention has passed, without another acquire or release
+        RawdataClientEncryptionKeyCache.Lease retained = keyCache.acquire("password".toCharArray(), "salt".getBytes(), deriveKey, 50);
+        byte[] retainedKey = retained.secretKey();
+        retained.close();
+        assertEquals(1, keyCache.size());
+        Thread.sleep(500);
+        assertEquals(0, keyCache.size());
+        assertArrayEquals(new byte[retainedKey.length], retainedKey);
+    }
+
+    @Test
+    public void thatCompressedDocumentsAreDecompressedOnConsume() throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.compression", "deflate",
+                        "rawdata.compression.min-size", "64"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        byte[] largePayload = "<entry>PAYLOAD</entry>".repeat(200).getBytes(StandardCharsets.UTF_8);
+        contentStore.bufferDocument("compressed-topic", "1", "large", largePayload, httpRequestInfo);
+        contentStore.bufferDocument("compressed-topic", "1", "small", "PAYLOAD".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.publish("compressed-topic", "1");
+
+        try (ContentStreamConsumer consumer = contentStore.contentStream().consumer("compressed-topic")) {
+            ContentStreamBuffer message = consumer.receive(1, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertArrayEquals(largePayload, message.get("large"));
+            assertEquals("PAYLOAD", new String(message.get("small"), StandardCharsets.UTF_8));
+        }
+        contentStore.close();
+    }
+
+    @Test
+    public void thatPooledBuilderReturnsChunksAfterProduce() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client, null, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.buffer.pool", "direct",
+                "rawdata.buffer.pool.chunk-size", "1024",
+                "rawdata.buffer.pool.max-bytes", "4096")));
+        RawdataClientBufferPool bufferPool = contentStream.bufferPool();
+        RawdataClientContentStreamProducer producer = contentStream.producer("pooled-topic");
+
+        byte[] payload = new byte[1500];
+        Arrays.fill(payload, (byte) 'x');
+        ContentStreamBuffer.Builder builder = producer.builder().position("1")
+                .put("a", payload)
+                .put("b", payload)
+                .put("c", payload); // exceeds the memory budget and stays on heap
+        assertEquals(4096, bufferPool.reservedBytes());
+        assertEquals(1, bufferPool.heapFallbackCount());
+        assertArrayEquals(payload, builder.get("a"));
+
+        producer.produce(builder);
+        assertEquals(0, bufferPool.reservedBytes());
+        producer.publish("1");
+
+        ContentStreamBuffer message = contentStream.lastMessage("pooled-topic");
+        assertArrayEquals(payload, message.get("a"));
+        assertArrayEquals(payload, message.get("c"));
+        contentStream.close();
+    }
+
+    @Test
+    public void thatSpilledPositionsArePublishedInBufferOrder() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStore contentStore = new RawdataClientContentStore(client, null, null, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.buffer.spill.max-memory-bytes", "2048")));
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        byte[] payload = new byte[1500];
+        Arrays.fill(payload, (byte) 'x');
+
+        contentStore.bufferDocument("spill-topic", "1", "a", payload, httpRequestInfo);
+        contentStore.bufferDocument("spill-topic", "2", "a", payload, httpRequestInfo);
+        contentStore.bufferDocument("spill-topic", "1", "b", "PAYLOAD".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        assertEquals(1, contentStore.spilledPositionCount());
+        assertEquals(Set.of("a", "b"), contentStore.contentKeys("spill-topic", "1"));
+        assertEquals(3, contentStore.activeBufferCount());
+
+        contentStore.publish("spill-topic", "1", "2");
+        assertEquals(0, contentStore.spilledPositionCount());
+        assertEquals(0, contentStore.activeBufferCount());
+
+        try (ContentStreamConsumer consumer = contentStore.contentStream().consumer("spill-topic")) {
+            ContentStreamBuffer message = consumer.receive(1, TimeUnit.SECONDS);
+            assertEquals("1", message.position());
+            assertEquals(List.of("a", "b", RawdataClientContentStreamBuffer.MANIFEST_KEY), List.copyOf(message.keys()));
+            assertArrayEquals(payload, message.get("a"));
+            assertEquals("PAYLOAD", new String(message.get("b"), StandardCharsets.UTF_8));
+            assertArrayEquals(payload, consumer.receive(1, TimeUnit.SECONDS).get("a"));
+        }
+        contentStore.close();
+    }
+
+    @Test
+    public void thatContentIsKeptInMemoryWhenSpillFails(@TempDir Path spillDirectory) throws Exception {
+        AtomicBoolean failSpill = new AtomicBoolean(true);
+        RawdataClientContentSpill contentSpill = new RawdataClientContentSpill(1024, spillDirectory, content -> {
+            if (failSpill.get()) {
+                throw new IllegalStateException("spill failure");
+            }
+            return content;
+        }, content -> content);
+        ContentStateKey contentStateKey = new ContentStateKey("spill-topic", "1");
+        RawdataClientContentStreamBuffer.Builder bufferBuilder = new RawdataClientContentStreamBuffer.Builder();
+        byte[] payload = new byte[1500];
+        Arrays.fill(payload, (byte) 'x');
+
+        bufferBuilder.put("a", payload);
+        contentSpill.touch(contentStateKey, bufferBuilder, payload.length);
+        assertArrayEquals(payload, bufferBuilder.get("a"));
+        assertEquals(payload.length, contentSpill.memoryBytes());
+        assertEquals(0, contentSpill.spilledPositionCount());
+        assertEquals(Set.of(), contentSpill.spilledKeys(contentStateKey));
+        try (Stream<Path> spillFiles = Files.list(spillDirectory)) {
+            assertEquals(0, spillFiles.count());
+        }
+
+        failSpill.set(false);
+        bufferBuilder.put("b", "PAYLOAD".getBytes(StandardCharsets.UTF_8));
+        contentSpill.touch(contentStateKey, bufferBuilder, 7);
+        assertTrue(bufferBuilder.keys().isEmpty());
+        assertEquals(0, contentSpill.memoryBytes());
+        assertEquals(1, contentSpill.spilledPositionCount());
+        assertEquals(Set.of("a", "b"), contentSpill.spilledKeys(contentStateKey));
+
+        contentSpill.restore(contentStateKey, bufferBuilder);
+        assertEquals(List.of("a", "b"), List.copyOf(bufferBuilder.keys()));
+        assertArrayEquals(payload, bufferBuilder.get("a"));
+        try (Stream<Path> spillFiles = Files.list(spillDirectory)) {
+            assertEquals(0, spillFiles.count());
+        }
+        contentSpill.close();
+    }
+
+    @Test
+    public void thatConsumersAtDifferentCursorsReadIndependently() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client);
+        try (ContentStreamProducer producer = contentStream.producer("cursor-topic")) {
+            for (int i = 1; i <= 5; i++) {
+                producer.publishBuilders(producer.builder().position(String.valueOf(i))
+                        .put("the-payload", ("Hello " + i).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+
+        ContentStreamConsumer fromStart = contentStream.consumer("cursor-topic");
+        ContentStreamConsumer fromPosition = contentStream.consumer("cursor-topic",
+                RawdataClientContentStreamCursor.ofPosition("3", true, System.currentTimeMillis(), Duration.ofMinutes(1)));
+        ContentStreamBuffer second = null;
+        for (int i = 1; i <= 2; i++) {
+            second = fromStart.receive(1, TimeUnit.SECONDS);
+            assertEquals(String.valueOf(i), second.position());
+        }
+        assertEquals("3", fromPosition.receive(1, TimeUnit.SECONDS).position());
+
+        ContentStreamConsumer fromUlid = contentStream.consumer("cursor-topic", RawdataClientContentStreamCursor.ofUlid(second.ulid(), false));
+        assertSame(fromUlid, contentStream.consumer("cursor-topic", RawdataClientContentStreamCursor.ofUlid(second.ulid(), false)));
+        assertEquals("3", fromUlid.receive(1, TimeUnit.SECONDS).position());
+        assertEquals("3", fromStart.receive(1, TimeUnit.SECONDS).position());
+        assertEquals("4", fromPosition.receive(1, TimeUnit.SECONDS).position());
+
+        contentStream.closeAndRemoveConsumer("cursor-topic");
+        assertTrue(fromStart.isClosed());
+        assertTrue(fromPosition.isClosed());
+        assertTrue(fromUlid.isClosed());
+        contentStream.close();
+    }
+
+    @Test
+    public void thatReceiveBatchDrainsAvailableMessagesWithinLimits() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client);
+        try (ContentStreamProducer producer = contentStream.producer("batch-receive-topic")) {
+            for (int i = 1; i <= 10; i++) {
+                producer.publishBuilders(producer.builder().position(String.valueOf(i))
+                        .put("the-payload", new byte[100]));
+            }
+        }
+
+        try (RawdataClientContentStreamConsumer consumer = contentStream.consumer("batch-receive-topic")) {
+            List<ContentStreamBuffer> batch = consumer.receiveBatch(3, Long.MAX_VALUE, 1, TimeUnit.SECONDS);
+            assertEquals(List.of("1", "2", "3"), batch.stream().map(ContentStreamBuffer::position).toList());
+
+            // the message that exceeds the byte limit is returned first by the next receive
+            batch = consumer.receiveBatch(10, 250, 1, TimeUnit.SECONDS);
+            assertEquals(List.of("4", "5"), batch.stream().map(ContentStreamBuffer::position).toList());
+            assertEquals("6", consumer.receive(1, TimeUnit.SECONDS).position());
+        }
+
+        try (RawdataClientContentStreamConsumer consumer = new RawdataClientContentStreamConsumer(client.consumer("batch-receive-topic"), null, c -> {
+        }, 4)) {
+            for (int i = 1; i <= 10; i++) {
+                assertEquals(String.valueOf(i), consumer.receive(1, TimeUnit.SECONDS).position());
+            }
+            consumer.seek(0);
+            assertEquals("1", consumer.receive(1, TimeUnit.SECONDS).position());
+        }
+        contentStream.close();
+    }
+
+    @Test
+    public void thatFlowPublisherHonoursDemand() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client, null, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.flow.poll-interval-ms", "10")));
+        ContentStreamProducer producer = contentStream.producer("flow-topic");
+        for (int i = 1; i <= 3; i++) {
+            producer.publishBuilders(producer.builder().position(String.valueOf(i)).put("the-payload", new byte[1]));
+        }
+
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        contentStream.publisher("flow-topic").subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+                s.request(2);
+            }
+
+            @Override
+            public void onNext(ContentStreamBuffer item) {
+                received.add(item.position());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        assertEquals("1", received.poll(1, TimeUnit.SECONDS));
+        assertEquals("2", received.poll(1, TimeUnit.SECONDS));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+        subscription.get().request(2);
+        assertEquals("3", received.poll(1, TimeUnit.SECONDS));
+        // a message published after the topic went idle is picked up by the next poll
+        producer.publishBuilders(producer.builder().position("4").put("the-payload", new byte[1]));
+        assertEquals("4", received.poll(1, TimeUnit.SECONDS));
+
+        contentStream.close();
+        assertTrue(completed.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void thatTopicLocksAreEvictedWhenReleased() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStore contentStore = new RawdataClientContentStore(client, null, null);
+        RawdataClientTopicLocks topicLocks = contentStore.topicLocks();
+
+        contentStore.lock("lock-topic");
+        contentStore.lock("lock-topic");
+        assertEquals(1, topicLocks.activeLockCount());
+
+        CompletableFuture<Boolean> otherThread = CompletableFuture.supplyAsync(() -> contentStore.tryLock("lock-topic", 10, TimeUnit.MILLISECONDS));
+        assertFalse(otherThread.get());
+        assertEquals(1, topicLocks.contendedAcquisitionCount());
+        assertEquals(1, topicLocks.timeoutCount());
+
+        contentStore.unlock("lock-topic");
+        contentStore.unlock("lock-topic");
+        assertEquals(0, topicLocks.activeLockCount());
+        assertThrows(IllegalMonitorStateException.class, () -> contentStore.unlock("lock-topic"));
+
+        contentStore.close();
+    }
+
+    @Test
+    public void thatLatencyHistogramsReportPercentiles() throws Exception {
+        RawdataClientLatencyHistogram histogram = new RawdataClientLatencyHistogram();
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        RawdataClientLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count());
+        assertEquals(1_000_000, snapshot.maxNanos());
+        assertTrue(Math.abs(snapshot.p50Nanos() - 500_000) <= 500_000 / 16, () -> "p50: " + snapshot.p50Nanos());
+        assertTrue(Math.abs(snapshot.p99Nanos() - 990_000) <= 990_000 / 16, () -> "p99: " + snapshot.p99Nanos());
+
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStore contentStore = new RawdataClientContentStore(client, null, null);
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        contentStore.bufferDocument("latency-topic", "1", "entry", "PAYLOAD".getBytes(), httpRequestInfo);
+        contentStore.bufferDocument("latency-topic", "2", "entry", "PAYLOAD".getBytes(), httpRequestInfo);
+        contentStore.publish("latency-topic", "1", "2");
+
+        RawdataClientLatencyMetrics latencyMetrics = contentStore.latencyMetrics();
+        assertEquals(2, latencyMetrics.snapshot("latency-topic", RawdataClientLatencyMetrics.Operation.BUFFER).count());
+        assertEquals(2, latencyMetrics.snapshot("latency-topic", RawdataClientLatencyMetrics.Operation.MANIFEST).count());
+        assertEquals(1, latencyMetrics.snapshot("latency-topic", RawdataClientLatencyMetrics.Operation.PUBLISH).count());
+        assertEquals(1, latencyMetrics.snapshot(RawdataClientLatencyMetrics.Operation.PUBLISH).count());
+
+        contentStore.closeTopic("latency-topic");
+        assertNull(latencyMetrics.snapshot("latency-topic", RawdataClientLatencyMetrics.Operation.PUBLISH));
+
+        // a publish that completes after its topic was closed is recorded in the totals only
+        latencyMetrics.record("latency-topic", RawdataClientLatencyMetrics.Operation.PUBLISH, 1000);
+        assertNull(latencyMetrics.snapshot("latency-topic", RawdataClientLatencyMetrics.Operation.PUBLISH));
+        assertEquals(2, latencyMetrics.snapshot(RawdataClientLatencyMetrics.Operation.PUBLISH).count());
+        contentStore.close();
+    }
+
+    @Test
+    public void thatBufferCountersTrackBufferedContent() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStore contentStore = new RawdataClientContentStore(client, null, null);
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        RawdataClientBufferCounters bufferCounters = contentStore.bufferCounters();
+
+        contentStore.bufferDocument("counter-topic", "1", "a", new byte[10], httpRequestInfo);
+        contentStore.bufferDocument("counter-topic", "1", "b", new byte[20], httpRequestInfo);
+        contentStore.bufferDocument("counter-topic", "1", "a", new byte[5], httpRequestInfo);
+        contentStore.bufferDocument("other-topic", "1", "a", new byte[100], httpRequestInfo);
+
+        assertEquals(3, bufferCounters.entryCount());
+        assertEquals(125, bufferCounters.byteCount());
+        assertEquals(2, bufferCounters.positionCount());
+        assertEquals(2, bufferCounters.entryCount("counter-topic"));
+        assertEquals(25, bufferCounters.byteCount("counter-topic"));
+        assertEquals(1, bufferCounters.positionCount("counter-topic"));
+        assertEquals(3, contentStore.activeBufferCount());
+        assertEquals(2, contentStore.activePositionCount());
+
+        contentStore.publish("counter-topic", "1");
+        assertEquals(1, bufferCounters.entryCount());
+        assertEquals(100, bufferCounters.byteCount());
+        assertEquals(0, bufferCounters.positionCount("counter-topic"));
+        assertEquals(1, contentStore.activePositionCount());
+
+        // a closed topic keeps its counters only while positions are buffered
+        contentStore.closeTopic("counter-topic");
+        contentStore.closeTopic("other-topic");
+        assertEquals(Set.of("other-topic"), bufferCounters.topics());
+        assertEquals(100, bufferCounters.byteCount("other-topic"));
+
+        contentStore.close();
+    }
+
+    @Test
+    public void thatGroupCommitWritesTopicsTogether() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client, null, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.publish.group-commit", "true",
+                "rawdata.publish.group-commit.window-ms", "200")));
+        RawdataClientGroupCommit groupCommit = contentStream.groupCommit();
+
+        RawdataClientContentStreamProducer firstProducer = contentStream.producer("first-topic");
+        RawdataClientContentStreamProducer secondProducer = contentStream.producer("second-topic");
+        firstProducer.produce(firstProducer.builder().position("1").put("a", "first 1".getBytes(StandardCharsets.UTF_8)));
+        firstProducer.produce(firstProducer.builder().position("2").put("a", "first 2".getBytes(StandardCharsets.UTF_8)));
+        secondProducer.produce(secondProducer.builder().position("1").put("a", "second 1".getBytes(StandardCharsets.UTF_8)));
+
+        CompletableFuture<Void> first1 = firstProducer.publishAsync("1");
+        CompletableFuture<Void> first2 = firstProducer.publishAsync("2");
+        CompletableFuture<Void> second1 = secondProducer.publishAsync("1");
+        assertEquals(3, groupCommit.pendingMessageCount());
+        assertFalse(first1.isDone());
+
+        CompletableFuture.allOf(first1, first2, second1).get(5, TimeUnit.SECONDS);
+        assertEquals(1, groupCommit.groupCount());
+        assertEquals(2, groupCommit.writeCount());
+        assertEquals(3, groupCommit.messageCount());
+
+        try (ContentStreamConsumer consumer = contentStream.consumer("first-topic")) {
+            assertEquals("1", consumer.receive(1, TimeUnit.SECONDS).position());
+            assertEquals("2", consumer.receive(1, TimeUnit.SECONDS).position());
+        }
+        try (ContentStreamConsumer consumer = contentStream.consumer("second-topic")) {
+            assertEquals("second 1", new String(consumer.receive(1, TimeUnit.SECONDS).get("a"), StandardCharsets.UTF_8));
+        }
+        contentStream.close();
+    }
+
+    @Test
+    public void thatWriteAheadLogReplaysUnpublishedPositions(@TempDir Path walDirectory) throws Exception {
+        RawdataClientContentStreamConfiguration configuration = RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.wal.directory", walDirectory.toString(),
+                "rawdata.wal.segment-size", "1024"));
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        byte[] payload = new byte[1500];
+        Arrays.fill(payload, (byte) 'x');
+
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStore contentStore = new RawdataClientContentStore(client, null, null, configuration);
+        assertEquals(0, contentStore.replayWriteAheadLog());
+        contentStore.bufferDocument("wal-topic", "1", "a", "PAYLOAD 1".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.bufferDocument("wal-topic", "2", "a", payload, httpRequestInfo);
+        contentStore.bufferDocument("wal-topic", "2", "b", "PAYLOAD 2".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.publish("wal-topic", "1");
+        contentStore.close();
+
+        RawdataClient restartedClient = newMemoryClient();
+        RawdataClientContentStore restartedContentStore = new RawdataClientContentStore(restartedClient, null, null, configuration);
+        assertEquals(2, restartedContentStore.replayWriteAheadLog());
+        assertEquals(Set.of("a", "b"), restartedContentStore.contentKeys("wal-topic", "2"));
+        restartedContentStore.publish("wal-topic", "2");
+
+        ContentStreamBuffer message = restartedContentStore.contentStream().lastMessage("wal-topic");
+        assertEquals("2", message.position());
+        assertArrayEquals(payload, message.get("a"));
+        assertEquals("PAYLOAD 2", new String(message.get("b"), StandardCharsets.UTF_8));
+        assertEquals(2, new ObjectMapper().readTree(message.get(RawdataClientContentStreamBuffer.MANIFEST_KEY)).size());
+        restartedContentStore.close();
+
+        RawdataClient emptyClient = newMemoryClient();
+        RawdataClientContentStore emptyContentStore = new RawdataClientContentStore(emptyClient, null, null, configuration);
+        assertEquals(0, emptyContentStore.replayWriteAheadLog());
+        emptyContentStore.close();
+    }
+
+    @Test
+    public void thatWriteAheadLogIsCompactedWhilePositionsAreUnpublished(@TempDir Path walDirectory) throws Exception {
+        byte[] manifestJson = "{}".getBytes(StandardCharsets.UTF_8);
+        byte[] content = new byte[100];
+        RawdataClientWriteAheadLog writeAheadLog = new RawdataClientWriteAheadLog(walDirectory, 1024, false, false);
+        // a position that stays unpublished keeps the segment from being truncated
+        writeAheadLog.append("wal-topic", "0", "a", (byte) 0, manifestJson, "PAYLOAD 0".getBytes(StandardCharsets.UTF_8));
+        for (int i = 1; i <= 2000; i++) {
+            writeAheadLog.append("wal-topic", String.valueOf(i), "a", (byte) 0, manifestJson, content);
+            writeAheadLog.published("wal-topic", String.valueOf(i));
+        }
+        writeAheadLog.append("wal-topic", "2001", "a", (byte) 0, manifestJson, content);
+        writeAheadLog.close();
+        try (Stream<Path> segmentFiles = Files.list(walDirectory)) {
+            List<Path> files = segmentFiles.collect(Collectors.toList());
+            assertEquals(1, files.size());
+            assertTrue(Files.size(files.get(0)) <= 4096, () -> "segment size: " + files.get(0));
+        }
+
+        RawdataClientWriteAheadLog restartedWriteAheadLog = new RawdataClientWriteAheadLog(walDirectory, 1024, false, false);
+        List<RawdataClientWriteAheadLog.Entry> entries = restartedWriteAheadLog.replay();
+        assertEquals(List.of("0", "2001"), entries.stream().map(entry -> entry.position).collect(Collectors.toList()));
+        assertEquals("PAYLOAD 0", new String(entries.get(0).content, StandardCharsets.UTF_8));
+        restartedWriteAheadLog.close();
+    }
+
+    @Test
+    public void thatEncryptedWriteAheadLogIsReplayedOnlyWithTheEncryptionKey(@TempDir Path walDirectory) throws Exception {
+        char[] encryptionKey = "password".toCharArray();
+        byte[] encryptionSalt = "salt".getBytes();
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+
+        // content that is encrypted when its position is published is encrypted separately for the log
+        RawdataClientContentStore parallelContentStore = new RawdataClientContentStore(newMemoryClient(), encryptionKey, encryptionSalt, RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.wal.directory", walDirectory.toString(),
+                "rawdata.encryption.stage", "parallel")));
+        parallelContentStore.bufferDocument("wal-topic", "1", "a", "PAYLOAD".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        parallelContentStore.close();
+
+        RawdataClientContentStreamConfiguration configuration = RawdataClientContentStreamConfiguration.of(Map.of(
+                "rawdata.wal.directory", walDirectory.toString()));
+        RawdataClientContentStore keylessContentStore = new RawdataClientContentStore(newMemoryClient(), null, null, configuration);
+        assertThrows(IllegalStateException.class, keylessContentStore::replayWriteAheadLog);
+        keylessContentStore.close();
+
+        // a store with the inline stage encrypts the replayed content when it is buffered
+        RawdataClientContentStore inlineContentStore = new RawdataClientContentStore(newMemoryClient(), encryptionKey, encryptionSalt, configuration);
+        assertEquals(1, inlineContentStore.replayWriteAheadLog());
+        inlineContentStore.publish("wal-topic", "1");
+
+        EncryptionClient encryptionClient = new EncryptionClient(Algorithm.AES256);
+        byte[] secretKey = encryptionClient.generateSecretKey(encryptionKey, encryptionSalt).getEncoded();
+        ContentStreamBuffer message = inlineContentStore.contentStream().lastMessage("wal-topic");
+        assertEquals("PAYLOAD", new String(encryptionClient.decrypt(secretKey, message.get("a")), StandardCharsets.UTF_8));
+        inlineContentStore.close();
+    }
+
+    @Test
+    public void thatCompactManifestWritesCommonFieldsOnce() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        RawdataClientManifestInterner manifestInterner = new RawdataClientManifestInterner(16);
+        JsonNode headers = manifestInterner.intern(mapper.readTree("{\"content-type\":[\"application/xml\"]}"));
+        assertSame(headers, manifestInterner.intern(mapper.readTree("{\"content-type\":[\"application/xml\"]}")));
+
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.manifest.format", "compact",
+                        "rawdata.manifest.intern-size", "16",
+                        "rawdata.compression", "deflate",
+                        "rawdata.compression.min-size", "64"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        byte[] largePayload = "<entry>PAYLOAD</entry>".repeat(200).getBytes(StandardCharsets.UTF_8);
+        contentStore.bufferDocument("compact-topic", "1", "large", largePayload, httpRequestInfo);
+        contentStore.bufferDocument("compact-topic", "1", "small", "PAYLOAD".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.publish("compact-topic", "1");
+
+        try (ContentStreamConsumer consumer = contentStore.contentStream().consumer("compact-topic")) {
+            ContentStreamBuffer message = consumer.receive(1, TimeUnit.SECONDS);
+            assertArrayEquals(largePayload, message.get("large"));
+
+            JsonNode manifest = mapper.readTree(message.get(RawdataClientContentStreamBuffer.MANIFEST_KEY));
+            assertEquals("compact", manifest.get("manifest-format").textValue());
+            assertEquals("compact-topic", manifest.get("common").get("topic").textValue());
+            assertFalse(manifest.get("entries").get(0).has("topic"));
+
+            JsonNode expanded = RawdataClientManifestWriter.expand(manifest);
+            assertEquals(2, expanded.size());
+            assertEquals("compact-topic", expanded.get(1).get("topic").textValue());
+            assertEquals("small", expanded.get(1).get(RawdataClientContentStreamBuffer.CONTENT_KEY).textValue());
+        }
+        contentStore.close();
+    }
+
+    @Test
+    public void thatConsumedMessagesAreDecodedOnDemand() throws Exception {
+        byte[] payload = "PAYLOAD".getBytes(StandardCharsets.UTF_8);
+        RawdataMessage rawMessage = RawdataMessage.builder().position("1").put("entry", payload).build();
+        RawdataClientMessageBuffer plainBuffer = new RawdataClientMessageBuffer(rawMessage, null);
+        assertSame(payload, plainBuffer.get("entry"));
+        assertTrue(plainBuffer.getBuffer("entry").isReadOnly());
+        assertEquals(List.of(), plainBuffer.manifest());
+
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.encryption.key", "password",
+                        "rawdata.encryption.salt", "salt",
+                        "rawdata.consumer.decrypt", "true",
+                        "rawdata.compression", "deflate",
+                        "rawdata.compression.min-size", "64"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        byte[] largePayload = "<entry>PAYLOAD</entry>".repeat(200).getBytes(StandardCharsets.UTF_8);
+        contentStore.bufferDocument("decrypted-topic", "1", "large", largePayload, httpRequestInfo);
+        contentStore.bufferDocument("decrypted-topic", "1", "small", payload, httpRequestInfo);
+        contentStore.publish("decrypted-topic", "1");
+
+        try (ContentStreamConsumer consumer = contentStore.contentStream().consumer("decrypted-topic")) {
+            ContentStreamBuffer message = consumer.receive(1, TimeUnit.SECONDS);
+            assertEquals(2, message.manifest().size());
+            assertEquals("small", message.manifest().get(1).getElementNode().get(RawdataClientContentStreamBuffer.CONTENT_KEY).textValue());
+            assertArrayEquals(largePayload, message.get("large"));
+            assertArrayEquals(payload, message.get("small"));
+        }
+        contentStore.close();
+    }
+
+    @Test
+    public void thatTopicReplayCopiesPartitionsAndResumesFromCheckpoint(@TempDir Path checkpointDirectory) throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.compression", "deflate",
+                        "rawdata.compression.min-size", "64"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        byte[] largePayload = "<entry>PAYLOAD</entry>".repeat(200).getBytes(StandardCharsets.UTF_8);
+        for (int i = 1; i <= 20; i++) {
+            contentStore.bufferDocument("replay-source-topic", Integer.toString(i), "entry", largePayload, httpRequestInfo);
+            contentStore.publish("replay-source-topic", Integer.toString(i));
+            Thread.sleep(2);
+        }
+        RawdataClientContentStream contentStream = (RawdataClientContentStream) contentStore.contentStream();
+        Path checkpointFile = checkpointDirectory.resolve("replay.checkpoint");
+
+        RawdataClientTopicReplay replay = contentStream.replay("replay-source-topic")
+                .target(contentStream, "replay-target-topic")
+                .partitions(4)
+                .parallelism(4)
+                .batchSize(3)
+                .idleTimeout(Duration.ofMillis(100))
+                .checkpointFile(checkpointFile)
+                .build();
+        assertEquals(20, replay.run());
+        // all partitions are done, so a second run resumes with nothing left to copy
+        assertEquals(0, replay.run());
+
+        Set<String> positions = new HashSet<>();
+        try (ContentStreamConsumer consumer = contentStream.consumer("replay-target-topic")) {
+            ContentStreamBuffer message;
+            while ((message = consumer.receive(100, TimeUnit.MILLISECONDS)) != null) {
+                positions.add(message.position());
+                assertArrayEquals(largePayload, message.get("entry"));
+            }
+        }
+        assertEquals(20, positions.size());
+
+        AtomicInteger replayed = new AtomicInteger();
+        long replayedCount = contentStream.replay("replay-source-topic")
+                .sink(message -> replayed.incrementAndGet())
+                .partitions(2)
+                .idleTimeout(Duration.ofMillis(100))
+                .maxMessagesPerSecond(1000)
+                .build()
+                .run();
+        assertEquals(20, replayedCount);
+        assertEquals(20, replayed.get());
+        contentStore.close();
+    }
+
+    @Test
+    public void thatConcurrentBuilderBuffersEntriesInContentKeyOrder() throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.buffer.concurrent", "true"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 99; i >= 0; i--) {
+            String contentKey = String.format("entry-%03d", i);
+            futures.add(executor.submit(() -> contentStore.bufferPaginationEntryDocument("concurrent-topic", "1", contentKey,
+                    contentKey.getBytes(StandardCharsets.UTF_8), httpRequestInfo, Map.of())));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        RawdataClientContentStore rawdataContentStore = (RawdataClientContentStore) contentStore;
+        assertEquals(100, rawdataContentStore.bufferCounters().entryCount("concurrent-topic"));
+        contentStore.publish("concurrent-topic", "1");
+
+        try (ContentStreamConsumer consumer = contentStore.contentStream().consumer("concurrent-topic")) {
+            ContentStreamBuffer message = consumer.receive(1, TimeUnit.SECONDS);
+            List<String> contentKeys = new ArrayList<>(message.keys());
+            contentKeys.remove(RawdataClientContentStreamBuffer.MANIFEST_KEY);
+            assertEquals(100, contentKeys.size());
+            for (int i = 0; i < 100; i++) {
+                String contentKey = String.format("entry-%03d", i);
+                assertEquals(contentKey, contentKeys.get(i));
+                assertEquals(contentKey, message.manifest().get(i).getElementNode().get(RawdataClientContentStreamBuffer.CONTENT_KEY).textValue());
+                assertArrayEquals(contentKey.getBytes(StandardCharsets.UTF_8), message.get(contentKey));
+            }
+        }
+        assertEquals(0, rawdataContentStore.bufferCounters().entryCount());
+        contentStore.close();
+    }
+
+    @Test
+    public void thatDedupIndexSkipsUnchangedContent(@TempDir Path dedupDirectory) throws Exception {
+        Map<String, String> configuration = Map.of(
+                "rawdata.client.provider", "memory",
+                "rawdata.encryption.key", "password",
+                "rawdata.encryption.salt", "salt",
+                "rawdata.dedup", "true",
+                "rawdata.dedup.max-entries", "2",
+                "rawdata.dedup.directory", dedupDirectory.toString());
+        ContentStore contentStore = ProviderConfigurator.configure(configuration, "rawdata", ContentStoreInitializer.class);
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        for (String contentKey : List.of("a", "b", "c")) {
+            contentStore.bufferDocument("dedup-topic", "1", contentKey, contentKey.getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        }
+        contentStore.publish("dedup-topic", "1");
+
+        contentStore.bufferDocument("dedup-topic", "1", "a", "a".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.bufferDocument("dedup-topic", "1", "b", "b".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.bufferDocument("dedup-topic", "1", "c", "changed".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.publish("dedup-topic", "1");
+        ContentStreamBuffer message = contentStore.contentStream().lastMessage("dedup-topic");
+        assertEquals("1", message.position());
+        assertEquals(Set.of("c", RawdataClientContentStreamBuffer.MANIFEST_KEY), message.keys());
+
+        // equal content at another position is published
+        contentStore.bufferDocument("dedup-topic", "3", "c", "changed".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.publish("dedup-topic", "3");
+        assertEquals("3", contentStore.contentStream().lastPosition("dedup-topic"));
+
+        // a position whose entries were all published before is not published again
+        contentStore.bufferDocument("dedup-topic", "1", "c", "changed".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.publish("dedup-topic", "1");
+        assertEquals("3", contentStore.contentStream().lastPosition("dedup-topic"));
+
+        RawdataClientDedupIndex dedupIndex = ((RawdataClientContentStore) contentStore).dedupIndex();
+        assertEquals(3, dedupIndex.hitCount());
+        assertEquals(5, dedupIndex.missCount());
+        assertEquals(2, dedupIndex.size());
+        contentStore.close();
+
+        // content hashes are persisted in the memory-mapped index
+        contentStore = ProviderConfigurator.configure(configuration, "rawdata", ContentStoreInitializer.class);
+        contentStore.bufferDocument("dedup-topic", "1", "a", "a".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        assertEquals(1, ((RawdataClientContentStore) contentStore).dedupIndex().hitCount());
+        contentStore.close();
+    }
+
+    @Test
+    public void thatLastPositionIsCachedUntilProducerIsRemoved() throws Exception {
+        RawdataClient client = newMemoryClient();
+        RawdataClientContentStream contentStream = new RawdataClientContentStream(client);
+        assertNull(contentStream.lastPosition("last-position-topic"));
+
+        RawdataClientContentStreamProducer producer = contentStream.producer("last-position-topic");
+        producer.publishBuilders(producer.builder().position("1").put("payload", "1".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("1", contentStream.lastPosition("last-position-topic"));
+
+        // a position written by another writer is not read from the backend while the producer is open
+        try (RawdataProducer otherWriter = client.producer("last-position-topic")) {
+            otherWriter.publish(RawdataMessage.builder().position("2").put("payload", "2".getBytes(StandardCharsets.UTF_8)).build());
+        }
+        assertEquals("1", contentStream.lastPosition("last-position-topic"));
+
+        contentStream.closeAndRemoveProducer("last-position-topic");
+        assertEquals("2", contentStream.lastPosition("last-position-topic"));
+
+        // without a producer, every call reads the backend
+        try (RawdataProducer otherWriter = client.producer("last-position-topic")) {
+            otherWriter.publish(RawdataMessage.builder().position("3").put("payload", "3".getBytes(StandardCharsets.UTF_8)).build());
+        }
+        assertEquals("3", contentStream.lastPosition("last-position-topic"));
+        contentStream.close();
+    }
+
+    @Test
+    public void thatStreamedDocumentIsStoredInEncryptedChunks() throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.encryption.key", "password",
+                        "rawdata.encryption.salt", "salt",
+                        "rawdata.consumer.decrypt", "true",
+                        "rawdata.stream.chunk-size", "1000"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        byte[] document = "0123456789".repeat(350).getBytes(StandardCharsets.UTF_8);
+        long contentLength = ((RawdataClientContentStore) contentStore).bufferDocument("streamed-topic", "1", "export",
+                new ByteArrayInputStream(document), httpRequestInfo);
+        assertEquals(3500, contentLength);
+        assertEquals(4, ((RawdataClientContentStore) contentStore).bufferCounters().entryCount("streamed-topic"));
+        contentStore.publish("streamed-topic", "1");
+
+        try (ContentStreamConsumer consumer = contentStore.contentStream().consumer("streamed-topic")) {
+            RawdataClientMessageBuffer message = (RawdataClientMessageBuffer) consumer.receive(1, TimeUnit.SECONDS);
+            assertEquals(Set.of("export.chunk-000000", "export.chunk-000001", "export.chunk-000002", "export.chunk-000003",
+                    RawdataClientContentStreamBuffer.MANIFEST_KEY), message.keys());
+            assertEquals(1, message.manifest().size());
+            JsonNode manifest = message.manifest().get(0).getElementNode();
+            assertEquals("export", manifest.get(RawdataClientContentStreamBuffer.CONTENT_KEY).textValue());
+            assertEquals(3500, manifest.get("content-length").asLong());
+            assertEquals(4, manifest.get(RawdataClientContentStreamBuffer.CONTENT_CHUNKS).size());
+            try (InputStream stream = message.openStream("export")) {
+                assertArrayEquals(document, stream.readAllBytes());
+            }
+        }
+
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        assertThrows(IllegalArgumentException.class, () -> ((RawdataClientContentStore) contentStore).bufferDocument("streamed-topic", "2", "export",
+                pipe.source(), httpRequestInfo));
+        pipe.source().close();
+        pipe.sink().close();
+        contentStore.close();
+    }
+
+    @Test
+    public void thatRecycledBuildersArePublishedWithoutStaleContent() throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.buffer.recycle", "true"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        contentStore.bufferDocument("recycle-topic", "1", "a", "first".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.bufferDocument("recycle-topic", "1", "b", "first".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.publish("recycle-topic", "1");
+        contentStore.bufferDocument("recycle-topic", "2", "c", "second".getBytes(StandardCharsets.UTF_8), httpRequestInfo);
+        contentStore.publish("recycle-topic", "2");
+
+        try (ContentStreamConsumer consumer = contentStore.contentStream().consumer("recycle-topic")) {
+            ContentStreamBuffer first = consumer.receive(1, TimeUnit.SECONDS);
+            assertEquals(Set.of("a", "b", RawdataClientContentStreamBuffer.MANIFEST_KEY), first.keys());
+            assertEquals(2, first.manifest().size());
+            ContentStreamBuffer second = consumer.receive(1, TimeUnit.SECONDS);
+            assertEquals("2", second.position());
+            assertEquals(Set.of("c", RawdataClientContentStreamBuffer.MANIFEST_KEY), second.keys());
+            assertEquals(1, second.manifest().size());
+            assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), second.get("c"));
+        }
+
+        RawdataClientContentStreamProducer producer = (RawdataClientContentStreamProducer) contentStore.contentStream().producer("recycle-topic");
+        RawdataClientContentStreamBuffer.Builder builder = producer.builder();
+        builder.position("3").put("d", "third".getBytes(StandardCharsets.UTF_8));
+        producer.recycle(builder);
+        // the pool is shared by the producers of the content stream
+        RawdataClientContentStreamProducer otherProducer = (RawdataClientContentStreamProducer) contentStore.contentStream().producer("other-recycle-topic");
+        RawdataClientContentStreamBuffer.Builder recycled = otherProducer.builder();
+        assertSame(builder, recycled);
+        assertNull(recycled.position());
+        assertTrue(recycled.keys().isEmpty());
+        contentStore.close();
+    }
+
+    @Test
+    public void thatRecycledBuildersAreNotSharedBetweenConcurrentPublishers() throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.buffer.recycle", "true"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        HttpRequestInfo httpRequestInfo = newHttpRequestInfo();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String topic = "recycle-topic-" + t;
+            futures.add(executor.submit(() -> {
+                for (int i = 1; i <= 100; i++) {
+                    String position = String.valueOf(i);
+                    for (String contentKey : List.of("a", "b")) {
+                        byte[] content = (topic + "/" + position + "/" + contentKey).getBytes(StandardCharsets.UTF_8);
+                        contentStore.bufferDocument(topic, position, contentKey, content, httpRequestInfo);
+                    }
+                    contentStore.publish(topic, position);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertTrue(((RawdataClientContentStream) contentStore.contentStream()).recycler().pooledBuilderCount()
+                <= RawdataClientContentStreamProducer.Recycler.MAX_POOLED);
+
+        for (int t = 0; t < 8; t++) {
+            String topic = "recycle-topic-" + t;
+            try (ContentStreamConsumer consumer = contentStore.contentStream().consumer(topic)) {
+                for (int i = 1; i <= 100; i++) {
+                    String position = String.valueOf(i);
+                    ContentStreamBuffer message = consumer.receive(1, TimeUnit.SECONDS);
+                    assertEquals(position, message.position());
+                    assertEquals(Set.of("a", "b", RawdataClientContentStreamBuffer.MANIFEST_KEY), message.keys());
+                    assertEquals(2, message.manifest().size());
+                    for (String contentKey : List.of("a", "b")) {
+                        assertArrayEquals((topic + "/" + position + "/" + contentKey).getBytes(StandardCharsets.UTF_8), message.get(contentKey));
+                    }
+                }
+            }
+        }
+        contentStore.close();
+    }
+
+    @Test
+    public void thatBuildersAreNotRecycledWithConcurrentBuffering() throws Exception {
+        ContentStore contentStore = ProviderConfigurator.configure(Map.of(
+                        "rawdata.client.provider", "memory",
+                        "rawdata.buffer.recycle", "true",
+                        "rawdata.buffer.concurrent", "true"),
+                "rawdata",
+                ContentStoreInitializer.class
+        );
+        RawdataClientContentStreamProducer producer = (RawdataClientContentStreamProducer) contentStore.contentStream().producer("recycle-topic");
+        RawdataClientContentStreamBuffer.Builder builder = producer.builder();
+        producer.recycle(builder);
+        assertNotSame(builder, producer.builder());
+        contentStore.close();
+    }
+
+    static HttpRequestInfo newHttpRequestInfo() {
+        return new HttpRequestInfo(CorrelationIds.create(ExecutionContext.empty()), null, -1, new Headers(), new Headers(), -1);
+    }
+
+    static RawdataClient newMemoryClient() {
+        return ProviderConfigurator.configure(Map.of(), "memory", RawdataClientInitializer.class);
+    }
+
+    /**
+     * @return a client that calls the given interceptor before its producer of the given topic publishes messages
+     */
+    static RawdataClient interceptPublish(RawdataClient client, String topic, Consumer<RawdataMessage[]> interceptor) {
+        return (RawdataClient) Proxy.newProxyInstance(RawdataClient.class.getClassLoader(), new Class<?>[]{RawdataClient.class}, (proxy, method, args) -> {
+            Object result = invoke(client, method, args);
+            if (!"producer".equals(method.getName()) || !topic.equals(args[0])) {
+                return result;
+            }
+            RawdataProducer producer = (RawdataProducer) result;
+            return Proxy.newProxyInstance(RawdataProducer.class.getClassLoader(), new Class<?>[]{RawdataProducer.class}, (producerProxy, producerMethod, producerArgs) -> {
+                if ("publish".equals(producerMethod.getName())) {
+                    interceptor.accept((RawdataMessage[]) producerArgs[0]);
+                }
+                return invoke(producer, producerMethod, producerArgs);
+            });
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
     static void consumeMessages(ContentStream client) {
         try (ContentStreamConsumer consumer = client.consumer("my-rawdata-stream")) {
             for (; ; ) {